@@ -0,0 +1,114 @@
+package illegal.security.chip.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import illegal.security.chip.host.ISCProtocol;
+
+/**
+ * Cost of the CLA_AUTH commands on the simulated card.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AuthBenchmark {
+	private SimulatedCard card;
+	private byte[] challenge;
+
+	private CommandAPDU reset;
+	private CommandAPDU[] getResponsePages;
+	private CommandAPDU getResponseSingle;
+
+	/**
+	 * Challenge upload in pages of the given size. 256 sends the whole challenge in one extended length APDU.
+	 */
+	@State(Scope.Thread)
+	public static class ChallengeUpload {
+		@Param({"16", "32", "64", "128", "256"})
+		public int pageSize;
+
+		public CommandAPDU[] pages;
+
+		@Setup
+		public void setup(AuthBenchmark bench) {
+			int count = ISCProtocol.LEN_CHALLENGE / this.pageSize;
+			this.pages = new CommandAPDU[count];
+			for (int page = 0; page < count; page++) {
+				// P1 * P2 is the offset. A single page always starts at 0.
+				int p1 = count == 1 ? 0 : this.pageSize;
+				this.pages[page] = new CommandAPDU(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE, p1, page,
+						bench.challenge, page * this.pageSize, this.pageSize);
+			}
+		}
+	}
+
+	@Setup
+	public void setup() {
+		this.card = new SimulatedCard();
+		this.challenge = new byte[ISCProtocol.LEN_CHALLENGE];
+		new Random(0).nextBytes(this.challenge);
+
+		this.reset = new CommandAPDU(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_RESET, 0, 0);
+
+		int pageSize = 0x80;
+		int count = (ISCProtocol.LEN_RESPONSE + pageSize - 1) / pageSize;
+		this.getResponsePages = new CommandAPDU[count];
+		for (int page = 0; page < count; page++) {
+			int le = Math.min(pageSize, ISCProtocol.LEN_RESPONSE - page * pageSize);
+			this.getResponsePages[page] = new CommandAPDU(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_GET_RESPONSE, pageSize, page, le);
+		}
+		this.getResponseSingle = new CommandAPDU(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_GET_RESPONSE, 0, 0, ISCProtocol.LEN_RESPONSE);
+
+		// Have a response ready for the GetResponse benchmarks. Reading it doesn't change anything.
+		this.card.send(new CommandAPDU(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE, 0, 0, this.challenge));
+	}
+
+	/**
+	 * Uploads the whole challenge, which includes signing it after the last page.
+	 */
+	@Benchmark
+	public ResponseAPDU setChallenge(ChallengeUpload upload) {
+		ResponseAPDU response = null;
+		for (CommandAPDU page : upload.pages) {
+			response = this.card.send(page);
+		}
+		return response;
+	}
+
+	@Benchmark
+	public ResponseAPDU getResponsePaged() {
+		ResponseAPDU response = null;
+		for (CommandAPDU page : this.getResponsePages) {
+			response = this.card.send(page);
+		}
+		return response;
+	}
+
+	@Benchmark
+	public ResponseAPDU getResponseSingle() {
+		return this.card.send(this.getResponseSingle);
+	}
+
+	@Benchmark
+	public ResponseAPDU reset() {
+		return this.card.send(this.reset);
+	}
+}
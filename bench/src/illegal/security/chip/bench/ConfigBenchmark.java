@@ -0,0 +1,135 @@
+package illegal.security.chip.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import illegal.security.chip.host.ISCProtocol;
+
+/**
+ * Cost of Import and Export on the simulated card, for each P1.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConfigBenchmark {
+	private SimulatedCard card;
+
+	@State(Scope.Thread)
+	public static class ImportType {
+		@Param({"serial", "pub_n", "pub_e", "pub_e_compat", "sig_id", "priv_p", "priv_q", "priv_pq", "priv_dp1", "priv_dq1", "bundle"})
+		public String type;
+
+		public CommandAPDU command;
+
+		@Setup
+		public void setup(ConfigBenchmark bench) {
+			int p1 = toP1(this.type);
+			// Each object fits in one (possibly extended length) APDU so it's complete after a single command.
+			this.command = new CommandAPDU(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT, p1, 0, bench.card.getObject(p1));
+			// Keep the imports away from the active identity.
+			bench.card.send(new CommandAPDU(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_BEGIN_STAGING, 0, 0));
+		}
+
+		@TearDown
+		public void tearDown(ConfigBenchmark bench) {
+			bench.card.send(new CommandAPDU(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_DISCARD, 0, 0));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ExportType {
+		@Param({"serial", "pub_n", "pub_e", "pub_e_compat", "sig_id", "ds4id"})
+		public String type;
+
+		public CommandAPDU command;
+
+		@Setup
+		public void setup() {
+			int p1 = toP1(this.type);
+			int le;
+			switch (p1) {
+			case ISCProtocol.P1_SERIAL:
+				le = 0x10;
+				break;
+			case ISCProtocol.P1_PUB_E_COMPAT:
+				le = 4;
+				break;
+			case ISCProtocol.P1_DS4ID:
+				le = ISCProtocol.LEN_ID;
+				break;
+			default:
+				le = 0x100;
+			}
+			this.command = new CommandAPDU(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_EXPORT, p1, 0, le);
+		}
+	}
+
+	@Setup
+	public void setup() {
+		this.card = new SimulatedCard();
+	}
+
+	/**
+	 * Imports one object into the staging slot, which is opened in setup and discarded in teardown, so the
+	 * active key, its fingerprint and the key epoch are left alone. The bundle is committed by the card right
+	 * away, so it does replace the active identity (with the same one) on every call.
+	 */
+	@Benchmark
+	public ResponseAPDU importObject(ImportType importType) {
+		return this.card.send(importType.command);
+	}
+
+	@Benchmark
+	public ResponseAPDU exportObject(ExportType exportType) {
+		return this.card.send(exportType.command);
+	}
+
+	private static int toP1(String type) {
+		switch (type) {
+		case "serial":
+			return ISCProtocol.P1_SERIAL;
+		case "pub_n":
+			return ISCProtocol.P1_PUB_N;
+		case "pub_e":
+			return ISCProtocol.P1_PUB_E;
+		case "pub_e_compat":
+			return ISCProtocol.P1_PUB_E_COMPAT;
+		case "sig_id":
+			return ISCProtocol.P1_SIG_ID;
+		case "ds4id":
+			return ISCProtocol.P1_DS4ID;
+		case "priv_p":
+			return ISCProtocol.P1_PRIV_P;
+		case "priv_q":
+			return ISCProtocol.P1_PRIV_Q;
+		case "priv_pq":
+			return ISCProtocol.P1_PRIV_PQ;
+		case "priv_dp1":
+			return ISCProtocol.P1_PRIV_DP1;
+		case "priv_dq1":
+			return ISCProtocol.P1_PRIV_DQ1;
+		case "bundle":
+			return ISCProtocol.P1_BUNDLE;
+		default:
+			throw new IllegalArgumentException("Unknown type " + type);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package illegal.security.chip.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import illegal.security.chip.host.ISCProtocol;
+import illegal.security.chip.sim.ISCSimulator;
+
+/**
+ * {@link ISCSimulator} personalized with a freshly generated DS4Key, plus the key objects the benchmarks
+ * need. The protocol constants are in {@link ISCProtocol}.
+ */
+public class SimulatedCard {
+	private final ISCSimulator card;
+	private final byte[][] objects = new byte[0x100][];
+
+	public SimulatedCard() {
+		this.card = new ISCSimulator();
+
+		RSAPrivateCrtKey key = generateKey();
+		byte[] serial = new byte[ISCProtocol.LEN_SERIAL];
+		byte[] sigId = new byte[ISCProtocol.LEN_INT];
+		Random random = new Random(0);
+		random.nextBytes(serial);
+		random.nextBytes(sigId);
+
+		this.objects[ISCProtocol.P1_SERIAL] = serial;
+		this.objects[ISCProtocol.P1_PUB_N] = toFixed(key.getModulus(), ISCProtocol.LEN_INT);
+		this.objects[ISCProtocol.P1_PUB_E] = toFixed(key.getPublicExponent(), ISCProtocol.LEN_INT);
+		this.objects[ISCProtocol.P1_PUB_E_COMPAT] = toFixed(key.getPublicExponent(), ISCProtocol.LEN_PUB_E_COMPAT);
+		this.objects[ISCProtocol.P1_SIG_ID] = sigId;
+		this.objects[ISCProtocol.P1_PRIV_P] = toFixed(key.getPrimeP(), ISCProtocol.LEN_PQ);
+		this.objects[ISCProtocol.P1_PRIV_Q] = toFixed(key.getPrimeQ(), ISCProtocol.LEN_PQ);
+		this.objects[ISCProtocol.P1_PRIV_PQ] = toFixed(key.getCrtCoefficient(), ISCProtocol.LEN_PQ);
+		this.objects[ISCProtocol.P1_PRIV_DP1] = toFixed(key.getPrimeExponentP(), ISCProtocol.LEN_PQ);
+		this.objects[ISCProtocol.P1_PRIV_DQ1] = toFixed(key.getPrimeExponentQ(), ISCProtocol.LEN_PQ);
+		this.objects[ISCProtocol.P1_BUNDLE] = this.buildBundle();
+
+		// The bundle is committed by the card right away.
+		this.send(new CommandAPDU(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT, ISCProtocol.P1_BUNDLE, 0, this.objects[ISCProtocol.P1_BUNDLE]));
+	}
+
+	/**
+	 * Sends a command and checks that it succeeded.
+	 * @throws IllegalStateException if the card returned an error.
+	 */
+	public ResponseAPDU send(CommandAPDU command) {
+		ResponseAPDU response = this.card.transmit(command);
+		if (response.getSW() != ISCProtocol.SW_NO_ERROR) {
+			throw new IllegalStateException(String.format("Command %s failed with SW %04x.", command, response.getSW()));
+		}
+		return response;
+	}
+
+	/**
+	 * Returns the value of a key object as imported with the given import type (P1).
+	 */
+	public byte[] getObject(int importType) {
+		return this.objects[importType];
+	}
+
+	private byte[] buildBundle() {
+		ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+		int[] types = {
+			ISCProtocol.P1_SERIAL, ISCProtocol.P1_PUB_N, ISCProtocol.P1_PUB_E_COMPAT, ISCProtocol.P1_SIG_ID, ISCProtocol.P1_PRIV_P, ISCProtocol.P1_PRIV_Q, ISCProtocol.P1_PRIV_PQ, ISCProtocol.P1_PRIV_DP1, ISCProtocol.P1_PRIV_DQ1
+		};
+		for (int type : types) {
+			byte[] value = this.objects[type];
+			bundle.write(type);
+			// BER-TLV length
+			if (value.length < 0x80) {
+				bundle.write(value.length);
+			} else if (value.length < 0x100) {
+				bundle.write(0x81);
+				bundle.write(value.length);
+			} else {
+				bundle.write(0x82);
+				bundle.write(value.length >> 8);
+				bundle.write(value.length);
+			}
+			bundle.write(value, 0, value.length);
+		}
+		return bundle.toByteArray();
+	}
+
+	private static RSAPrivateCrtKey generateKey() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4));
+			return (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Encodes an unsigned integer as a big-endian byte array of a fixed size.
+	 */
+	private static byte[] toFixed(BigInteger value, int size) {
+		byte[] raw = value.toByteArray();
+		if (raw.length > size) {
+			// Drop the sign byte
+			return Arrays.copyOfRange(raw, raw.length - size, raw.length);
+		}
+		byte[] fixed = new byte[size];
+		System.arraycopy(raw, 0, fixed, size - raw.length, raw.length);
+		return fixed;
+	}
+}
@@ -0,0 +1,83 @@
+package illegal.security.chip.farm;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line entry point of the reader farm.
+ */
+public class FarmMain {
+	private static final String USAGE = "usage: FarmMain (--pcsc | --sim <count>) [--duration <seconds>] "
+			+ "[--pacing [<reader>=]<ms>]... [--max-in-flight <n>] [--page-size <n>]";
+
+	public static void main(String[] args) throws Exception {
+		List<FarmReader> readers = null;
+		Duration duration = Duration.ofSeconds(10);
+		int maxInFlight = 0;
+		int pageSize = -1;
+		List<String> pacings = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--pcsc":
+				readers = PcscReader.discover();
+				break;
+			case "--sim":
+				readers = SimulatedReader.pool(Integer.parseInt(argument(args, ++i)));
+				break;
+			case "--duration":
+				duration = Duration.ofSeconds(Long.parseLong(argument(args, ++i)));
+				break;
+			case "--pacing":
+				pacings.add(argument(args, ++i));
+				break;
+			case "--max-in-flight":
+				maxInFlight = Integer.parseInt(argument(args, ++i));
+				break;
+			case "--page-size":
+				pageSize = Integer.decode(argument(args, ++i));
+				break;
+			default:
+				usage();
+			}
+		}
+		if (readers == null) {
+			usage();
+		}
+		if (readers.isEmpty()) {
+			System.err.println("No readers found.");
+			System.exit(1);
+		}
+
+		ReaderFarm farm = new ReaderFarm(readers);
+		for (String pacing : pacings) {
+			int separator = pacing.lastIndexOf('=');
+			if (separator < 0) {
+				farm.setPacing(Duration.ofMillis(Long.parseLong(pacing)));
+			} else {
+				farm.setPacing(pacing.substring(0, separator), Duration.ofMillis(Long.parseLong(pacing.substring(separator + 1))));
+			}
+		}
+		farm.setMaxInFlight(maxInFlight);
+		if (pageSize >= 0) {
+			farm.setPageSize(pageSize);
+		}
+		farm.setProgress(System.out, Duration.ofSeconds(1));
+
+		System.out.printf("Running on %d readers for %d s.%n", readers.size(), duration.getSeconds());
+		farm.run(duration).print(System.out);
+	}
+
+	private static String argument(String[] args, int i) {
+		if (i >= args.length) {
+			usage();
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+}
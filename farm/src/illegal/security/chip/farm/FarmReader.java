@@ -0,0 +1,24 @@
+package illegal.security.chip.farm;
+
+import javax.smartcardio.CardException;
+
+import illegal.security.chip.host.ApduTransport;
+
+/**
+ * A reader (or simulated card) driven by the {@link ReaderFarm}. Each reader is only ever used from
+ * one thread at a time.
+ */
+public interface FarmReader {
+	String getName();
+
+	/**
+	 * Connects to the card. The applet doesn't need to be selected yet.
+	 * @return Transport to the card, valid until {@link #disconnect()}.
+	 */
+	ApduTransport connect() throws CardException;
+
+	/**
+	 * Disconnects from the card. Called even if {@link #connect()} failed.
+	 */
+	void disconnect();
+}
@@ -0,0 +1,59 @@
+package illegal.security.chip.farm;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Outcome of a {@link ReaderFarm} run.
+ */
+public class FarmReport {
+	private final Duration elapsed;
+	private final List<ReaderStats> readers;
+
+	FarmReport(Duration elapsed, List<ReaderStats> readers) {
+		this.elapsed = elapsed;
+		this.readers = readers;
+	}
+
+	public Duration getElapsed() {
+		return this.elapsed;
+	}
+
+	public List<ReaderStats> getReaders() {
+		return this.readers;
+	}
+
+	public long getTotalCycles() {
+		long total = 0;
+		for (ReaderStats reader : this.readers) {
+			total += reader.getCycles();
+		}
+		return total;
+	}
+
+	public long getTotalFailures() {
+		long total = 0;
+		for (ReaderStats reader : this.readers) {
+			total += reader.getFailures();
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the aggregate throughput of all readers.
+	 */
+	public double getCyclesPerSecond() {
+		double seconds = this.elapsed.toNanos() / 1e9;
+		return seconds == 0 ? 0 : this.getTotalCycles() / seconds;
+	}
+
+	public void print(PrintStream out) {
+		for (ReaderStats reader : this.readers) {
+			out.printf("%-40s %8d cycles %6d failed %10.1f us/cycle%s%n", reader.getName(), reader.getCycles(),
+					reader.getFailures(), reader.getAverageCycleMicros(), reader.hasGivenUp() ? " (gave up: " + reader.getLastError() + ")" : "");
+		}
+		out.printf("total: %d cycles, %d failed in %.1f s, %.1f cycles/s%n", this.getTotalCycles(), this.getTotalFailures(),
+				this.elapsed.toNanos() / 1e9, this.getCyclesPerSecond());
+	}
+}
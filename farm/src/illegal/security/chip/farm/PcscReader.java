@@ -0,0 +1,59 @@
+package illegal.security.chip.farm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+import illegal.security.chip.host.ApduTransport;
+import illegal.security.chip.host.CardChannelTransport;
+
+/**
+ * PC/SC terminal with a card in it.
+ */
+public class PcscReader implements FarmReader {
+	private final CardTerminal terminal;
+	private Card card;
+
+	public PcscReader(CardTerminal terminal) {
+		this.terminal = terminal;
+	}
+
+	/**
+	 * Returns all PC/SC terminals that currently have a card present.
+	 */
+	public static List<FarmReader> discover() throws CardException {
+		List<FarmReader> readers = new ArrayList<>();
+		for (CardTerminal terminal : TerminalFactory.getDefault().terminals().list(CardTerminals.State.CARD_PRESENT)) {
+			readers.add(new PcscReader(terminal));
+		}
+		return readers;
+	}
+
+	@Override
+	public String getName() {
+		return this.terminal.getName();
+	}
+
+	@Override
+	public ApduTransport connect() throws CardException {
+		this.card = this.terminal.connect("*");
+		return new CardChannelTransport(this.card.getBasicChannel());
+	}
+
+	@Override
+	public void disconnect() {
+		if (this.card != null) {
+			try {
+				this.card.disconnect(false);
+			} catch (CardException e) {
+				// The card is gone anyway.
+			}
+			this.card = null;
+		}
+	}
+}
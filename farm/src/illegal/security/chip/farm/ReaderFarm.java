@@ -0,0 +1,201 @@
+package illegal.security.chip.farm;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+
+import illegal.security.chip.host.ApduTransport;
+import illegal.security.chip.host.ISCClient;
+import illegal.security.chip.host.ISCProtocol;
+
+/**
+ * Runs the AUTH_RESET / SET_CHALLENGE / GET_RESPONSE cycle on many readers at once, each in its own
+ * virtual thread.
+ *
+ * Each reader can be paced (i.e. a minimum interval between the start of two cycles), and the number of
+ * cycles in flight across all readers can be capped, which keeps e.g. readers behind a shared USB hub
+ * from being flooded. A reader is dropped after {@link #MAX_CONSECUTIVE_FAILURES} failed cycles in a row.
+ *
+ * PC/SC transmits block in native code and pin the carrier thread. With more readers than CPU cores, raise
+ * {@code jdk.virtualThreadScheduler.parallelism} to the number of readers.
+ */
+public class ReaderFarm {
+	public static final int MAX_CONSECUTIVE_FAILURES = 10;
+
+	private final List<FarmReader> readers;
+	private final Map<String, Duration> readerPacing = new HashMap<>();
+	private Duration pacing = Duration.ZERO;
+	private int maxInFlight;
+	private int pageSize = ISCClient.DEFAULT_PAGE_SIZE;
+	private PrintStream progress;
+	private Duration progressInterval = Duration.ofSeconds(1);
+
+	public ReaderFarm(List<FarmReader> readers) {
+		this.readers = readers;
+	}
+
+	/**
+	 * Sets the minimum interval between the start of two cycles on the same reader, for all readers
+	 * without their own pacing.
+	 */
+	public void setPacing(Duration pacing) {
+		this.pacing = pacing;
+	}
+
+	/**
+	 * Sets the pacing of one reader.
+	 */
+	public void setPacing(String readerName, Duration pacing) {
+		this.readerPacing.put(readerName, pacing);
+	}
+
+	/**
+	 * Caps the number of cycles running at the same time across all readers. 0 means no limit.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException("Invalid in-flight limit " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Sets the page size used for the challenge and the response. See {@link ISCClient#setPageSize(int)}.
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Prints the aggregate throughput at the given interval while running. null disables it.
+	 */
+	public void setProgress(PrintStream progress, Duration interval) {
+		this.progress = progress;
+		this.progressInterval = interval;
+	}
+
+	/**
+	 * Runs cycles on all readers until the duration has passed or all readers were dropped.
+	 */
+	public FarmReport run(Duration duration) throws InterruptedException {
+		List<ReaderStats> stats = new ArrayList<>(this.readers.size());
+		Semaphore inFlight = new Semaphore(this.maxInFlight == 0 ? Integer.MAX_VALUE : this.maxInFlight, true);
+		CountDownLatch done = new CountDownLatch(this.readers.size());
+		long start = System.nanoTime();
+		long deadline = start + duration.toNanos();
+
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (FarmReader reader : this.readers) {
+				ReaderStats readerStats = new ReaderStats(reader.getName());
+				stats.add(readerStats);
+				Duration readerPacing = this.readerPacing.getOrDefault(reader.getName(), this.pacing);
+				executor.submit(() -> {
+					try {
+						this.runReader(reader, readerStats, readerPacing.toNanos(), inFlight, deadline);
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+
+			long lastCycles = 0;
+			long lastTime = start;
+			while (!done.await(this.progressInterval.toNanos(), TimeUnit.NANOSECONDS)) {
+				if (this.progress != null) {
+					long now = System.nanoTime();
+					long cycles = totalCycles(stats);
+					this.progress.printf("%.1f cycles/s%n", (cycles - lastCycles) * 1e9 / (now - lastTime));
+					lastCycles = cycles;
+					lastTime = now;
+				}
+			}
+		}
+		return new FarmReport(Duration.ofNanos(System.nanoTime() - start), stats);
+	}
+
+	private static long totalCycles(List<ReaderStats> stats) {
+		long total = 0;
+		for (ReaderStats reader : stats) {
+			total += reader.getCycles();
+		}
+		return total;
+	}
+
+	private void runReader(FarmReader reader, ReaderStats stats, long pacingNanos, Semaphore inFlight, long deadline) {
+		int consecutiveFailures = 0;
+		try {
+			ApduTransport transport;
+			try {
+				transport = reader.connect();
+			} catch (CardException | RuntimeException e) {
+				stats.failure(e);
+				stats.giveUp();
+				return;
+			}
+
+			try (ISCClient client = new ISCClient(transport)) {
+				client.setPageSize(this.pageSize);
+				client.select();
+
+				// Reused for every cycle so the loop doesn't allocate.
+				byte[] challengeBytes = new byte[ISCProtocol.LEN_CHALLENGE];
+				ByteBuffer challenge = ByteBuffer.wrap(challengeBytes);
+				ByteBuffer response = ByteBuffer.allocateDirect(ISCProtocol.LEN_RESPONSE);
+
+				long next = System.nanoTime();
+				while (System.nanoTime() < deadline) {
+					long wait = next - System.nanoTime();
+					if (wait > 0) {
+						if (next >= deadline) {
+							// The next cycle would start after the end of the run.
+							break;
+						}
+						Thread.sleep(Duration.ofNanos(wait));
+					}
+					next = Math.max(next, System.nanoTime()) + pacingNanos;
+
+					ThreadLocalRandom.current().nextBytes(challengeBytes);
+					challenge.clear();
+					response.clear();
+					inFlight.acquire();
+					try {
+						long cycleStart = System.nanoTime();
+						client.resetAuth();
+						client.setChallenge(challenge);
+						client.getResponse(response);
+						stats.success(System.nanoTime() - cycleStart);
+						consecutiveFailures = 0;
+					} catch (CardException | RuntimeException e) {
+						stats.failure(e);
+						if (++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+							stats.giveUp();
+							return;
+						}
+					} finally {
+						inFlight.release();
+					}
+				}
+			} catch (CardException e) {
+				// Select failed
+				stats.failure(e);
+				stats.giveUp();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			reader.disconnect();
+		}
+	}
+}
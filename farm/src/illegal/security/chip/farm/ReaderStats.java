@@ -0,0 +1,71 @@
+package illegal.security.chip.farm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one reader. Updated by the reader's thread and read by anyone.
+ */
+public class ReaderStats {
+	private final String name;
+	private final AtomicLong cycles = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong cycleNanos = new AtomicLong();
+	private volatile String lastError;
+	private volatile boolean gaveUp;
+
+	ReaderStats(String name) {
+		this.name = name;
+	}
+
+	void success(long nanos) {
+		this.cycleNanos.addAndGet(nanos);
+		this.cycles.incrementAndGet();
+	}
+
+	void failure(Exception e) {
+		this.lastError = String.valueOf(e.getMessage());
+		this.failures.incrementAndGet();
+	}
+
+	void giveUp() {
+		this.gaveUp = true;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the number of completed cycles.
+	 */
+	public long getCycles() {
+		return this.cycles.get();
+	}
+
+	/**
+	 * Returns the number of failed cycles, including failed connection attempts.
+	 */
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	/**
+	 * Returns the average duration of a completed cycle in microseconds, not counting the pacing and the
+	 * wait for an in-flight slot.
+	 */
+	public double getAverageCycleMicros() {
+		long cycles = this.getCycles();
+		return cycles == 0 ? 0 : this.cycleNanos.get() / 1000.0 / cycles;
+	}
+
+	public String getLastError() {
+		return this.lastError;
+	}
+
+	/**
+	 * Returns whether the reader was dropped after too many consecutive failures.
+	 */
+	public boolean hasGivenUp() {
+		return this.gaveUp;
+	}
+}
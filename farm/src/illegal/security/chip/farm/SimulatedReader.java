@@ -0,0 +1,49 @@
+package illegal.security.chip.farm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+
+import illegal.security.chip.host.ApduTransport;
+import illegal.security.chip.sim.ISCSimulator;
+
+/**
+ * {@link ISCSimulator} posing as a reader. A fresh simulator is created on connect and personalized
+ * with an on-card generated (unsigned) key, so AUTH commands work right away.
+ */
+public class SimulatedReader implements FarmReader {
+	private final String name;
+
+	public SimulatedReader(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the given number of simulated readers.
+	 */
+	public static List<FarmReader> pool(int count) {
+		List<FarmReader> readers = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			readers.add(new SimulatedReader("sim" + i));
+		}
+		return readers;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public ApduTransport connect() throws CardException {
+		ISCSimulator simulator = new ISCSimulator();
+		simulator.generateIdentity();
+		return simulator;
+	}
+
+	@Override
+	public void disconnect() {
+		// Nothing to release. The simulator is dropped with its transport.
+	}
+}
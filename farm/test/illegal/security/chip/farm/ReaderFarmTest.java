@@ -0,0 +1,133 @@
+package illegal.security.chip.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.CardException;
+
+import org.junit.Test;
+
+import illegal.security.chip.host.ApduTransport;
+import illegal.security.chip.host.ISCProtocol;
+
+/**
+ * Pacing, in-flight limit and dropping of failing readers, over a few {@link SimulatedReader}s.
+ */
+public class ReaderFarmTest {
+	@Test
+	public void pacing() throws Exception {
+		List<FarmReader> readers = SimulatedReader.pool(3);
+		ReaderFarm farm = new ReaderFarm(readers);
+		farm.setPacing(Duration.ofMillis(100));
+		farm.setPacing("sim2", Duration.ofMillis(250));
+		FarmReport report = farm.run(Duration.ofSeconds(1));
+
+		for (ReaderStats stats : report.getReaders()) {
+			long maxCycles = stats.getName().equals("sim2") ? 4 : 10;
+			assertTrue(stats.getName() + " ran " + stats.getCycles() + " cycles",
+					stats.getCycles() >= 2 && stats.getCycles() <= maxCycles);
+			assertEquals(0, stats.getFailures());
+		}
+	}
+
+	@Test
+	public void maxInFlight() throws Exception {
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxSeen = new AtomicInteger();
+		List<FarmReader> readers = new ArrayList<>();
+		for (FarmReader reader : SimulatedReader.pool(4)) {
+			readers.add(new ProbeReader(reader, inFlight, maxSeen, 0));
+		}
+		ReaderFarm farm = new ReaderFarm(readers);
+		farm.setMaxInFlight(1);
+		FarmReport report = farm.run(Duration.ofMillis(500));
+
+		assertEquals(1, maxSeen.get());
+		for (ReaderStats stats : report.getReaders()) {
+			// The semaphore is fair, so nobody starves.
+			assertTrue(stats.getName() + " never got a turn", stats.getCycles() > 0);
+		}
+	}
+
+	@Test
+	public void dropAfterConsecutiveFailures() throws Exception {
+		List<FarmReader> readers = new ArrayList<>();
+		readers.add(new ProbeReader(new SimulatedReader("failing"), new AtomicInteger(), new AtomicInteger(), Integer.MAX_VALUE));
+		// Fails one cycle short of being dropped, then recovers.
+		readers.add(new ProbeReader(new SimulatedReader("flaky"), new AtomicInteger(), new AtomicInteger(),
+				ReaderFarm.MAX_CONSECUTIVE_FAILURES - 1));
+		ReaderFarm farm = new ReaderFarm(readers);
+		FarmReport report = farm.run(Duration.ofMillis(500));
+
+		ReaderStats failing = report.getReaders().get(0);
+		assertTrue(failing.hasGivenUp());
+		assertEquals(ReaderFarm.MAX_CONSECUTIVE_FAILURES, failing.getFailures());
+		assertEquals(0, failing.getCycles());
+
+		ReaderStats flaky = report.getReaders().get(1);
+		assertFalse(flaky.hasGivenUp());
+		assertEquals(ReaderFarm.MAX_CONSECUTIVE_FAILURES - 1, flaky.getFailures());
+		assertTrue(flaky.getCycles() > 0);
+	}
+
+	/**
+	 * Wraps a reader to track how many CLA_AUTH commands are in progress across all readers, and to fail
+	 * the first cycles.
+	 */
+	private static final class ProbeReader implements FarmReader {
+		private final FarmReader reader;
+		private final AtomicInteger inFlight;
+		private final AtomicInteger maxSeen;
+		private int failuresLeft;
+
+		ProbeReader(FarmReader reader, AtomicInteger inFlight, AtomicInteger maxSeen, int failures) {
+			this.reader = reader;
+			this.inFlight = inFlight;
+			this.maxSeen = maxSeen;
+			this.failuresLeft = failures;
+		}
+
+		@Override
+		public String getName() {
+			return this.reader.getName();
+		}
+
+		@Override
+		public ApduTransport connect() throws CardException {
+			ApduTransport transport = this.reader.connect();
+			return (command, response) -> {
+				if ((command.get(command.position()) & 0xff) != ISCProtocol.CLA_AUTH) {
+					return transport.transmit(command, response);
+				}
+				// AUTH_RESET starts a cycle.
+				if (this.failuresLeft > 0 && (command.get(command.position() + 1) & 0xff) == ISCProtocol.INS_AUTH_RESET) {
+					this.failuresLeft--;
+					throw new CardException("Simulated failure");
+				}
+				this.maxSeen.accumulateAndGet(this.inFlight.incrementAndGet(), Math::max);
+				try {
+					// Long enough for the other readers to pile up behind the limit.
+					Thread.sleep(2);
+					return transport.transmit(command, response);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CardException(e);
+				} finally {
+					this.inFlight.decrementAndGet();
+				}
+			};
+		}
+
+		@Override
+		public void disconnect() {
+			this.reader.disconnect();
+		}
+	}
+}
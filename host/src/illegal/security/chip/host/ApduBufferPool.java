@@ -0,0 +1,57 @@
+package illegal.security.chip.host;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pool of direct buffers for command and response APDUs, so clients can be created and discarded
+ * without allocating new buffers every time. Thread-safe.
+ */
+public class ApduBufferPool {
+	/**
+	 * Fits the largest command (the import bundle) and the largest response (the full challenge response),
+	 * both as extended length APDUs.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 0x1000;
+
+	private static final ApduBufferPool SHARED = new ApduBufferPool(DEFAULT_BUFFER_SIZE);
+
+	private final int bufferSize;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+	public ApduBufferPool(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Returns the pool shared by all clients that don't specify one.
+	 */
+	public static ApduBufferPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, or allocates a new one if the pool is empty.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = this.free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(this.bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.capacity() == this.bufferSize) {
+			this.free.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+}
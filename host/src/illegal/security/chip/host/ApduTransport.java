@@ -0,0 +1,21 @@
+package illegal.security.chip.host;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Something that can exchange APDUs with IllegalSecurityChip, i.e. a reader or the simulator.
+ * Follows the buffer contract of {@link javax.smartcardio.CardChannel#transmit(ByteBuffer, ByteBuffer)}.
+ */
+public interface ApduTransport {
+	/**
+	 * Sends a command APDU and receives the response APDU.
+	 * @param command The command APDU, from its position to its limit. The position is advanced to the limit.
+	 * @param response Receives the response APDU including the status word, starting at its position.
+	 * The position is advanced by the length of the response.
+	 * @return The length of the response.
+	 * @throws CardException if the exchange failed.
+	 */
+	int transmit(ByteBuffer command, ByteBuffer response) throws CardException;
+}
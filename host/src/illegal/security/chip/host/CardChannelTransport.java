@@ -0,0 +1,22 @@
+package illegal.security.chip.host;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+
+/**
+ * {@link ApduTransport} over a PC/SC card channel.
+ */
+public class CardChannelTransport implements ApduTransport {
+	private final CardChannel channel;
+
+	public CardChannelTransport(CardChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+		return this.channel.transmit(command, response);
+	}
+}
@@ -0,0 +1,32 @@
+package illegal.security.chip.host;
+
+/**
+ * Objects that can be exported with {@link ISCClient#export(ExportType, java.nio.ByteBuffer)}.
+ */
+public enum ExportType {
+	SERIAL(ISCProtocol.P1_SERIAL, ISCProtocol.LEN_SERIAL),
+	PUB_N(ISCProtocol.P1_PUB_N, ISCProtocol.LEN_INT),
+	PUB_E(ISCProtocol.P1_PUB_E, ISCProtocol.LEN_INT),
+	PUB_E_COMPAT(ISCProtocol.P1_PUB_E_COMPAT, ISCProtocol.LEN_PUB_E_COMPAT),
+	SIG_ID(ISCProtocol.P1_SIG_ID, ISCProtocol.LEN_INT),
+	/**
+	 * The signed DS4ID block, i.e. serial, public key and the signature over them.
+	 */
+	DS4ID(ISCProtocol.P1_DS4ID, ISCProtocol.LEN_ID);
+
+	private final int p1;
+	private final int length;
+
+	ExportType(int p1, int length) {
+		this.p1 = p1;
+		this.length = length;
+	}
+
+	public int getP1() {
+		return this.p1;
+	}
+
+	public int getLength() {
+		return this.length;
+	}
+}
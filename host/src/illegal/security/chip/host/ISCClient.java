@@ -0,0 +1,349 @@
+package illegal.security.chip.host;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Typed client for IllegalSecurityChip.
+ *
+ * Command and response APDUs are built in a pair of direct buffers taken from an {@link ApduBufferPool}
+ * and reused for every command, so the client itself doesn't allocate during the challenge-response
+ * cycle. Transports may still copy or allocate, e.g. {@link CardChannelTransport} (the PC/SC stack copies
+ * the APDUs internally) and the simulator (which allocates new arrays for every APDU).
+ *
+ * Not thread-safe. Use one client per card (or per logical channel) and {@link #close()} it to return
+ * the buffers to the pool.
+ */
+public class ISCClient implements AutoCloseable {
+	/**
+	 * Page size used when none is set. Same as iscctl.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 0x80;
+	/**
+	 * Smallest page size that still lets P2 address the whole response.
+	 */
+	public static final int MIN_PAGE_SIZE = 0x08;
+
+	private final ApduTransport transport;
+	private final ApduBufferPool pool;
+	private final ByteBuffer command;
+	private final ByteBuffer response;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private boolean closed;
+
+	/**
+	 * Creates a client using the shared buffer pool.
+	 */
+	public ISCClient(ApduTransport transport) {
+		this(transport, ApduBufferPool.shared());
+	}
+
+	public ISCClient(ApduTransport transport, ApduBufferPool pool) {
+		this.transport = transport;
+		this.pool = pool;
+		this.command = pool.acquire();
+		this.response = pool.acquire();
+	}
+
+	public int getPageSize() {
+		return this.pageSize;
+	}
+
+	/**
+	 * Sets the size of the pages used to send the challenge and read the response.
+	 * @param pageSize Page size between {@link #MIN_PAGE_SIZE} and 255, or 0 to send and receive
+	 * everything in a single extended length APDU.
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize != 0 && (pageSize < MIN_PAGE_SIZE || pageSize > 0xff)) {
+			throw new IllegalArgumentException("Invalid page size " + pageSize);
+		}
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Selects the applet.
+	 */
+	public void select() throws CardException {
+		this.putCommand(ISCProtocol.CLA_ISO, ISCProtocol.INS_ISO_SELECT, ISCProtocol.P1_SELECT_BY_DF_NAME, 0,
+				ByteBuffer.wrap(ISCProtocol.APPLET_AID), ISCProtocol.APPLET_AID.length, 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Returns the applet version.
+	 */
+	public byte[] version() throws CardException {
+		byte[] version = new byte[ISCProtocol.LEN_VERSION];
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_GET_VERSION, 0, 0, null, 0, version.length);
+		int length = this.transceive(ByteBuffer.wrap(version));
+		if (length != version.length) {
+			throw new CardException("Unexpected version length " + length);
+		}
+		return version;
+	}
+
+	/**
+	 * Returns the identity status.
+	 */
+	public Status status() throws CardException {
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_GET_STATUS, 0, 0, null, 0, ISCProtocol.LEN_STATUS);
+		int length = this.transceive(null);
+		if (length != ISCProtocol.LEN_STATUS) {
+			throw new CardException("Unexpected status length " + length);
+		}
+		return new Status(this.response.get(0) != 0, this.response.get(1) != 0);
+	}
+
+	/**
+	 * Uploads a challenge. The card signs it after the last page.
+	 * @param challenge The challenge. Must have exactly {@link ISCProtocol#LEN_CHALLENGE} bytes remaining.
+	 * Consumed on return.
+	 */
+	public void setChallenge(ByteBuffer challenge) throws CardException {
+		requireRemaining(challenge, ISCProtocol.LEN_CHALLENGE);
+		if (this.pageSize == 0) {
+			this.putCommand(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE, 0, 0, challenge, ISCProtocol.LEN_CHALLENGE, 0);
+			this.transceive(null);
+			return;
+		}
+		// P1 * P2 is the offset within the challenge.
+		for (int page = 0; challenge.hasRemaining(); page++) {
+			int length = Math.min(this.pageSize, challenge.remaining());
+			this.putCommand(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE, this.pageSize, page, challenge, length, 0);
+			this.transceive(null);
+		}
+	}
+
+	/**
+	 * Uploads the SHA-256 hash of a challenge instead of the challenge itself. The card signs it right away.
+	 * @param hash The hash. Must have exactly {@link ISCProtocol#LEN_CHALLENGE_HASH} bytes remaining.
+	 * Consumed on return.
+	 */
+	public void setChallengeHash(ByteBuffer hash) throws CardException {
+		requireRemaining(hash, ISCProtocol.LEN_CHALLENGE_HASH);
+		this.putCommand(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE_HASH, 0, 0, hash, ISCProtocol.LEN_CHALLENGE_HASH, 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Reads the full response, i.e. the signature over the challenge followed by the signed DS4ID block.
+	 * @param out Receives {@link ISCProtocol#LEN_RESPONSE} bytes.
+	 */
+	public void getResponse(ByteBuffer out) throws CardException {
+		this.readResponse(ISCProtocol.INS_AUTH_GET_RESPONSE, ISCProtocol.LEN_RESPONSE, out);
+	}
+
+	/**
+	 * Reads only the signature over the challenge.
+	 * @param out Receives {@link ISCProtocol#LEN_INT} bytes.
+	 */
+	public void getSignature(ByteBuffer out) throws CardException {
+		this.readResponse(ISCProtocol.INS_AUTH_GET_SIGNATURE, ISCProtocol.LEN_INT, out);
+	}
+
+	/**
+	 * Discards the current challenge and response.
+	 */
+	public void resetAuth() throws CardException {
+		this.putCommand(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_RESET, 0, 0, null, 0, 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Imports an object in a single (extended length if needed) APDU. It goes to the staging slot after
+	 * {@link #beginStaging()} and to the active identity otherwise.
+	 * @param type The object type.
+	 * @param data The object. Must have exactly the size of the object remaining. Consumed on return.
+	 */
+	public void importObject(ImportType type, ByteBuffer data) throws CardException {
+		if (type.getLength() >= 0) {
+			requireRemaining(data, type.getLength());
+		}
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT, type.getP1(), 0, data, data.remaining(), 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Exports an object of the active identity.
+	 * @param type The object type.
+	 * @param out Receives the object.
+	 * @return The size of the object.
+	 */
+	public int export(ExportType type, ByteBuffer out) throws CardException {
+		requireSpace(out, type.getLength());
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_EXPORT, type.getP1(), 0, null, 0, type.getLength());
+		return this.transceive(out);
+	}
+
+	/**
+	 * Generates a new key pair, in the staging slot after {@link #beginStaging()}. Slow on real cards.
+	 */
+	public void generateKeys() throws CardException {
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_GEN_KEYS, 0, 0, null, 0, 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Sends the following imports and key generations to the staging slot until {@link #commit()} or
+	 * {@link #discard()}.
+	 */
+	public void beginStaging() throws CardException {
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_BEGIN_STAGING, 0, 0, null, 0, 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Makes the staged identity the active one.
+	 */
+	public void commit() throws CardException {
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_COMMIT, 0, 0, null, 0, 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Drops the staged identity.
+	 */
+	public void discard() throws CardException {
+		this.putCommand(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_DISCARD, 0, 0, null, 0, 0);
+		this.transceive(null);
+	}
+
+	/**
+	 * Returns the buffers to the pool. The client can't be used afterwards.
+	 */
+	@Override
+	public void close() {
+		if (!this.closed) {
+			this.closed = true;
+			this.pool.release(this.command);
+			this.pool.release(this.response);
+		}
+	}
+
+	private void readResponse(int ins, int length, ByteBuffer out) throws CardException {
+		requireSpace(out, length);
+		if (this.pageSize == 0) {
+			// Ask for chaining so cards (or readers) without extended length support answer with 61xx,
+			// which is followed below.
+			this.putCommand(ISCProtocol.CLA_AUTH, ins, 0, ISCProtocol.P2_RESP_CHAIN, null, 0, length);
+			this.transceive(out);
+			return;
+		}
+		for (int page = 0, offset = 0; offset < length; page++, offset += this.pageSize) {
+			this.putCommand(ISCProtocol.CLA_AUTH, ins, this.pageSize, page, null, 0, Math.min(this.pageSize, length - offset));
+			this.transceive(out);
+		}
+	}
+
+	/**
+	 * Builds a command APDU in the command buffer. Extended length is used when the data or Le don't fit
+	 * in a short APDU.
+	 * @param data Source of the command data. Its position is advanced by length. May be null if length is 0.
+	 * @param length Length of the command data.
+	 * @param le Expected response length, or 0 if no data is expected.
+	 */
+	private void putCommand(int cla, int ins, int p1, int p2, ByteBuffer data, int length, int le) {
+		boolean extended = length > 0xff || le > 0x100;
+		ByteBuffer command = this.command;
+		command.clear();
+		command.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2);
+		if (length > 0) {
+			if (extended) {
+				command.put((byte) 0).putShort((short) length);
+			} else {
+				command.put((byte) length);
+			}
+			int limit = data.limit();
+			data.limit(data.position() + length);
+			command.put(data);
+			data.limit(limit);
+		}
+		if (le > 0) {
+			if (extended) {
+				if (length == 0) {
+					command.put((byte) 0);
+				}
+				command.putShort((short) le);
+			} else {
+				command.put((byte) le);
+			}
+		}
+		command.flip();
+	}
+
+	/**
+	 * Sends the command in the command buffer and follows ISO GET RESPONSE (61xx) chaining.
+	 * @param out Receives the response data. May be null, in which case the data of the last response
+	 * is left in the response buffer.
+	 * @return The total length of the response data.
+	 * @throws ISCStatusException if the card returned an error.
+	 */
+	private int transceive(ByteBuffer out) throws CardException {
+		int total = 0;
+		while (true) {
+			this.response.clear();
+			this.transport.transmit(this.command, this.response);
+			this.response.flip();
+			int length = this.response.remaining() - 2;
+			if (length < 0) {
+				throw new CardException("Response too short.");
+			}
+			int sw = this.response.getShort(length) & 0xffff;
+			boolean more = (sw >> 8) == ISCProtocol.SW1_BYTES_REMAINING;
+			if (!more && sw != ISCProtocol.SW_NO_ERROR) {
+				throw new ISCStatusException(sw);
+			}
+			if (out != null) {
+				this.response.limit(length);
+				out.put(this.response);
+			}
+			total += length;
+			if (!more) {
+				return total;
+			}
+			int le = sw & 0xff;
+			this.putCommand(ISCProtocol.CLA_ISO, ISCProtocol.INS_ISO_GET_RESPONSE, 0, 0, null, 0, le == 0 ? 0x100 : le);
+		}
+	}
+
+	private static void requireRemaining(ByteBuffer data, int length) {
+		if (data.remaining() != length) {
+			throw new IllegalArgumentException("Expected " + length + " bytes, got " + data.remaining());
+		}
+	}
+
+	private static void requireSpace(ByteBuffer out, int length) {
+		if (out.remaining() < length) {
+			throw new IllegalArgumentException("Need " + length + " bytes of space, got " + out.remaining());
+		}
+	}
+
+	/**
+	 * Identity status as returned by GetStatus.
+	 */
+	public static final class Status {
+		private final boolean ready;
+		private final boolean staged;
+
+		Status(boolean ready, boolean staged) {
+			this.ready = ready;
+			this.staged = staged;
+		}
+
+		/**
+		 * Returns whether an identity is active, i.e. CLA_AUTH commands are accepted.
+		 */
+		public boolean isReady() {
+			return this.ready;
+		}
+
+		/**
+		 * Returns whether the staging slot has uncommitted changes.
+		 */
+		public boolean hasStagedChanges() {
+			return this.staged;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package illegal.security.chip.host;
+
+/**
+ * Protocol constants of IllegalSecurityChip. Mirrors the constants in ISCApplet.
+ */
+public final class ISCProtocol {
+	public static final byte[] APPLET_AID = {0x11, 0x1e, (byte) 0x9a, 0x15, (byte) 0xec, 0x00};
+
+	public static final int CLA_ISO = 0x00;
+	public static final int CLA_AUTH = 0x80;
+	public static final int CLA_CONFIG = 0x90;
+
+	public static final int INS_ISO_SELECT = 0xa4;
+	public static final int INS_ISO_GET_RESPONSE = 0xc0;
+	public static final int P1_SELECT_BY_DF_NAME = 0x04;
+
+	// CLA_AUTH
+	public static final int INS_AUTH_SET_CHALLENGE = 0x44;
+	public static final int INS_AUTH_GET_RESPONSE = 0x46;
+	public static final int INS_AUTH_RESET = 0x48;
+	public static final int INS_AUTH_CHALLENGE_RESPONSE = 0x4a;
+	public static final int INS_AUTH_GET_FINGERPRINT = 0x4c;
+	public static final int INS_AUTH_GET_SIGNATURE = 0x4e;
+	public static final int INS_AUTH_GET_CHALLENGE_STATUS = 0x50;
+	public static final int INS_AUTH_SET_CHALLENGE_HASH = 0x52;
+	public static final int INS_AUTH_SET_CHALLENGE_CHAINED = 0x54;
+
+	// CLA_CONFIG
+	public static final int INS_CONFIG_GET_VERSION = 0x00;
+	public static final int INS_CONFIG_GET_STATUS = 0x01;
+	public static final int INS_CONFIG_GET_CAPABILITIES = 0x02;
+	public static final int INS_CONFIG_BENCHMARK = 0x03;
+	public static final int INS_CONFIG_GET_COUNTERS = 0x04;
+	public static final int INS_CONFIG_RESET = 0x0f;
+	public static final int INS_CONFIG_IMPORT = 0x10;
+	public static final int INS_CONFIG_IMPORT_AT = 0x11;
+	public static final int INS_CONFIG_IMPORT_STATUS = 0x12;
+	public static final int INS_CONFIG_EXPORT = 0x20;
+	public static final int INS_CONFIG_COMMIT = 0x30;
+	public static final int INS_CONFIG_DISCARD = 0x31;
+	public static final int INS_CONFIG_BEGIN_STAGING = 0x32;
+	public static final int INS_CONFIG_GEN_KEYS = 0xfd;
+	public static final int INS_CONFIG_ENTER_STEALTH_MODE = 0xfe;
+	public static final int INS_CONFIG_NUKE = 0xff;
+
+	// Import/Export types
+	public static final int P1_SERIAL = 0x80;
+	public static final int P1_PUB_N = 0x01;
+	public static final int P1_PUB_E = 0x02;
+	public static final int P1_PUB_E_COMPAT = 0x83;
+	public static final int P1_SIG_ID = 0x04;
+	public static final int P1_DS4ID = 0x08;
+	public static final int P1_PRIV_P = 0x10;
+	public static final int P1_PRIV_Q = 0x11;
+	public static final int P1_PRIV_PQ = 0x12;
+	public static final int P1_PRIV_DP1 = 0x13;
+	public static final int P1_PRIV_DQ1 = 0x14;
+	public static final int P1_BUNDLE = 0xc0;
+	/**
+	 * P2 of IMPORT that marks the last block of an object.
+	 */
+	public static final int P2_IMPORT_LAST = 0x01;
+	/**
+	 * P2 of GET_RESPONSE and GET_SIGNATURE (with P1 = 0), and of EXPORT of the DS4ID block, that asks for ISO
+	 * GET RESPONSE (61xx) chaining.
+	 */
+	public static final int P2_RESP_CHAIN = 0xff;
+
+	public static final int LEN_VERSION = 7;
+	public static final int LEN_STATUS = 2;
+	public static final int LEN_SERIAL = 0x10;
+	public static final int LEN_INT = 0x100;
+	public static final int LEN_PQ = 0x80;
+	public static final int LEN_PUB_E_COMPAT = 4;
+	public static final int LEN_CHALLENGE = 0x100;
+	public static final int LEN_CHALLENGE_HASH = 0x20;
+	public static final int LEN_ID = LEN_SERIAL + LEN_INT * 3;
+	public static final int LEN_RESPONSE = LEN_INT + LEN_ID;
+
+	public static final int SW_NO_ERROR = 0x9000;
+	public static final int SW1_BYTES_REMAINING = 0x61;
+
+	private ISCProtocol() {
+	}
+}
@@ -0,0 +1,21 @@
+package illegal.security.chip.host;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Thrown when the card answers with a status word other than 9000.
+ */
+public class ISCStatusException extends CardException {
+	private static final long serialVersionUID = 1L;
+
+	private final int sw;
+
+	public ISCStatusException(int sw) {
+		super(String.format("Card returned SW %04x.", sw));
+		this.sw = sw;
+	}
+
+	public int getSW() {
+		return this.sw;
+	}
+}
@@ -0,0 +1,40 @@
+package illegal.security.chip.host;
+
+/**
+ * Objects that can be imported with {@link ISCClient#importObject(ImportType, java.nio.ByteBuffer)}.
+ */
+public enum ImportType {
+	SERIAL(ISCProtocol.P1_SERIAL, ISCProtocol.LEN_SERIAL),
+	PUB_N(ISCProtocol.P1_PUB_N, ISCProtocol.LEN_INT),
+	PUB_E(ISCProtocol.P1_PUB_E, ISCProtocol.LEN_INT),
+	PUB_E_COMPAT(ISCProtocol.P1_PUB_E_COMPAT, ISCProtocol.LEN_PUB_E_COMPAT),
+	SIG_ID(ISCProtocol.P1_SIG_ID, ISCProtocol.LEN_INT),
+	PRIV_P(ISCProtocol.P1_PRIV_P, ISCProtocol.LEN_PQ),
+	PRIV_Q(ISCProtocol.P1_PRIV_Q, ISCProtocol.LEN_PQ),
+	PRIV_PQ(ISCProtocol.P1_PRIV_PQ, ISCProtocol.LEN_PQ),
+	PRIV_DP1(ISCProtocol.P1_PRIV_DP1, ISCProtocol.LEN_PQ),
+	PRIV_DQ1(ISCProtocol.P1_PRIV_DQ1, ISCProtocol.LEN_PQ),
+	/**
+	 * TLV encoded set of the other objects. Committed by the card on success.
+	 */
+	BUNDLE(ISCProtocol.P1_BUNDLE, -1);
+
+	private final int p1;
+	private final int length;
+
+	ImportType(int p1, int length) {
+		this.p1 = p1;
+		this.length = length;
+	}
+
+	public int getP1() {
+		return this.p1;
+	}
+
+	/**
+	 * Returns the size of the object, or -1 if it's variable.
+	 */
+	public int getLength() {
+		return this.length;
+	}
+}
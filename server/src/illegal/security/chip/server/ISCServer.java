@@ -0,0 +1,219 @@
+package illegal.security.chip.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import illegal.security.chip.host.ApduBufferPool;
+import illegal.security.chip.sim.ISCSimulator;
+
+/**
+ * Serves a set of simulated cards over TCP, so tools that don't run in the JVM (or don't have PC/SC) can
+ * drive the applet.
+ *
+ * Every message is a 2-byte big-endian length followed by that many bytes. A message of more than one
+ * byte is a command APDU, answered with the response APDU (including the status word) in the same
+ * framing. A one byte message is a control message: {@link #CTRL_POWER_OFF}, {@link #CTRL_POWER_ON} and
+ * {@link #CTRL_RESET} have no answer, and {@link #CTRL_GET_ATR} is answered with the ATR.
+ *
+ * Each session runs in its own virtual thread and has one of the idle cards to itself until it
+ * disconnects. The card is then replaced with a freshly installed (and, if asked for, personalized) one,
+ * so nothing a session does, persistent or not, carries over to the next one. Sessions that connect
+ * while all cards are in use are disconnected right away, so use at least as many cards as concurrent
+ * sessions.
+ */
+public class ISCServer implements AutoCloseable {
+	public static final int DEFAULT_PORT = 35963;
+
+	public static final int CTRL_POWER_OFF = 0;
+	public static final int CTRL_POWER_ON = 1;
+	public static final int CTRL_RESET = 2;
+	public static final int CTRL_GET_ATR = 4;
+
+	private static final int LEN_HEADER = 2;
+
+	private final ServerSocketChannel listener;
+	private final boolean personalize;
+	private final Queue<SimulatedCard> idleCards = new ConcurrentLinkedQueue<>();
+	private final ApduBufferPool pool = new ApduBufferPool(ApduBufferPool.DEFAULT_BUFFER_SIZE);
+	private final Set<SocketChannel> sessions = ConcurrentHashMap.newKeySet();
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+	/**
+	 * Creates the cards and binds the listening socket.
+	 * @param address Address to listen on.
+	 * @param cardCount Number of simulated cards, i.e. the maximum number of concurrent sessions.
+	 * @param personalize Whether to give each card a generated identity so AUTH commands work right away.
+	 */
+	public ISCServer(InetSocketAddress address, int cardCount, boolean personalize) throws IOException {
+		if (cardCount <= 0) {
+			throw new IllegalArgumentException("Invalid card count " + cardCount);
+		}
+		this.personalize = personalize;
+		for (int i = 0; i < cardCount; i++) {
+			this.idleCards.add(this.newCard());
+		}
+		this.listener = ServerSocketChannel.open();
+		this.listener.bind(address);
+	}
+
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) this.listener.getLocalAddress();
+	}
+
+	/**
+	 * Returns the number of connected sessions.
+	 */
+	public int getSessionCount() {
+		return this.sessions.size();
+	}
+
+	/**
+	 * Accepts sessions until {@link #close()} is called.
+	 */
+	public void run() throws IOException {
+		try {
+			while (true) {
+				SocketChannel channel = this.listener.accept();
+				SimulatedCard card = this.idleCards.poll();
+				if (card == null) {
+					// All cards are in use.
+					channel.close();
+					continue;
+				}
+				this.sessions.add(channel);
+				this.executor.submit(() -> this.serve(channel, card));
+			}
+		} catch (ClosedChannelException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Stops accepting sessions and disconnects the connected ones.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.listener.close();
+		for (SocketChannel channel : this.sessions) {
+			channel.close();
+		}
+		this.executor.close();
+	}
+
+	private SimulatedCard newCard() {
+		ISCSimulator simulator = new ISCSimulator();
+		if (this.personalize) {
+			simulator.generateIdentity();
+		}
+		return new SimulatedCard(simulator);
+	}
+
+	private void serve(SocketChannel channel, SimulatedCard card) {
+		ByteBuffer header = ByteBuffer.allocate(LEN_HEADER);
+		ByteBuffer command = this.pool.acquire();
+		ByteBuffer response = this.pool.acquire();
+		ByteBuffer[] frame = {header, response};
+		try (channel) {
+			while (true) {
+				header.clear();
+				if (!readFully(channel, header, true)) {
+					break;
+				}
+				int length = header.getShort(0) & 0xffff;
+				if (length == 0 || length > command.capacity()) {
+					// Not something we can answer. Drop the session.
+					break;
+				}
+				command.clear().limit(length);
+				readFully(channel, command, false);
+				command.flip();
+
+				response.clear();
+				if (length == 1) {
+					card.control(command.get(0), response);
+				} else {
+					card.transmit(command, response);
+				}
+				response.flip();
+				if (length == 1 && !response.hasRemaining()) {
+					continue;
+				}
+
+				header.clear();
+				header.putShort((short) response.remaining()).flip();
+				while (response.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+		} catch (IOException e) {
+			// Client went away
+		} finally {
+			this.pool.release(command);
+			this.pool.release(response);
+			this.sessions.remove(channel);
+			// Imports, key generation, stealth mode and nuke are persistent, so the next session gets a
+			// new card instead of this one.
+			this.idleCards.add(this.newCard());
+		}
+	}
+
+	/**
+	 * Fills the buffer from the channel.
+	 * @param eofAllowed Whether the end of the stream is acceptable before the first byte.
+	 * @return false on a clean end of the stream.
+	 */
+	private static boolean readFully(SocketChannel channel, ByteBuffer buffer, boolean eofAllowed) throws IOException {
+		boolean first = true;
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (eofAllowed && first) {
+					return false;
+				}
+				throw new EOFException();
+			}
+			first = false;
+		}
+		return true;
+	}
+
+	/**
+	 * A simulator used by one session at a time.
+	 */
+	private static final class SimulatedCard {
+		private final ISCSimulator simulator;
+
+		SimulatedCard(ISCSimulator simulator) {
+			this.simulator = simulator;
+		}
+
+		void transmit(ByteBuffer command, ByteBuffer response) {
+			this.simulator.transmit(command, response);
+		}
+
+		void control(byte code, ByteBuffer response) {
+			switch (code) {
+			case CTRL_POWER_ON:
+			case CTRL_RESET:
+				this.simulator.reset();
+				break;
+			case CTRL_GET_ATR:
+				response.put(this.simulator.getATR());
+				break;
+			default:
+				// Power off and unknown codes are ignored.
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package illegal.security.chip.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Command line entry point of the APDU server.
+ */
+public class ServerMain {
+	private static final String USAGE = "usage: ServerMain [--bind <address>] [--port <port>] [--cards <count>] [--blank]";
+	/**
+	 * Cards served when not given, i.e. how many sessions can be connected at the same time.
+	 */
+	private static final int DEFAULT_CARDS = 4;
+
+	public static void main(String[] args) throws Exception {
+		InetAddress bind = InetAddress.getLoopbackAddress();
+		int port = ISCServer.DEFAULT_PORT;
+		int cards = DEFAULT_CARDS;
+		boolean personalize = true;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--bind":
+				bind = InetAddress.getByName(argument(args, ++i));
+				break;
+			case "--port":
+				port = Integer.parseInt(argument(args, ++i));
+				break;
+			case "--cards":
+				cards = Integer.parseInt(argument(args, ++i));
+				break;
+			case "--blank":
+				personalize = false;
+				break;
+			default:
+				usage();
+			}
+		}
+
+		try (ISCServer server = new ISCServer(new InetSocketAddress(bind, port), cards, personalize)) {
+			System.out.printf("Serving %d %s on %s.%n", cards, cards == 1 ? "card" : "cards", server.getAddress());
+			server.run();
+		}
+	}
+
+	private static String argument(String[] args, int i) {
+		if (i >= args.length) {
+			usage();
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+}
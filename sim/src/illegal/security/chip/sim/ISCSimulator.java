@@ -0,0 +1,150 @@
+package illegal.security.chip.sim;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+
+import illegal.security.chip.ISCApplet;
+import illegal.security.chip.SignatureEngine;
+import illegal.security.chip.host.ApduTransport;
+import illegal.security.chip.host.ISCClient;
+import javacard.framework.AID;
+
+/**
+ * Runs {@link ISCApplet} in memory on top of jCardSim, so the applet can be driven without a card or
+ * a reader. The applet is installed and selected on construction and keeps its persistent state (i.e.
+ * the identity) until the simulator is discarded, the same way as a physical card.
+ *
+ * Also usable as the transport of the host SDK (i.e. illegal.security.chip.host.ISCClient).
+ *
+ * Not thread-safe. Use one instance per thread.
+ */
+public class ISCSimulator implements ApduTransport {
+	private static final byte[] APPLET_AID_BYTES = {0x11, 0x1e, (byte) 0x9a, 0x15, (byte) 0xec, 0x00};
+	public static final AID APPLET_AID = AIDUtil.create(APPLET_AID_BYTES);
+
+	private final CardSimulator simulator;
+
+	/**
+	 * Installs the applet with the default signature engine.
+	 */
+	public ISCSimulator() {
+		this(SignatureEngine.ENGINE_AUTO);
+	}
+
+	/**
+	 * Installs the applet.
+	 * @param engineType Signature engine to install the applet with. One of the SignatureEngine.ENGINE_* values.
+	 */
+	public ISCSimulator(byte engineType) {
+		this(engineType, (byte) 0);
+	}
+
+	/**
+	 * Installs the applet.
+	 * @param engineType Signature engine to install the applet with. One of the SignatureEngine.ENGINE_* values.
+	 * @param channelBuffers Number of logical channels (from channel 1 on) that get a challenge/signature buffer of their own.
+	 */
+	public ISCSimulator(byte engineType, byte channelBuffers) {
+		this.simulator = new CardSimulator();
+		byte[] params = buildInstallParams(engineType, channelBuffers);
+		this.simulator.installApplet(APPLET_AID, ISCApplet.class, params, (short) 0, (byte) params.length);
+		this.select();
+	}
+
+	/**
+	 * Builds the install parameters the same way as a card manager would, i.e. instance AID, empty
+	 * control info and the applet specific parameters.
+	 */
+	private static byte[] buildInstallParams(byte engineType, byte channelBuffers) {
+		byte[] aid = APPLET_AID_BYTES;
+		byte[] params = new byte[aid.length + 5];
+		int offset = 0;
+		params[offset++] = (byte) aid.length;
+		System.arraycopy(aid, 0, params, offset, aid.length);
+		offset += aid.length;
+		params[offset++] = 0;
+		params[offset++] = 2;
+		params[offset++] = engineType;
+		params[offset] = channelBuffers;
+		return params;
+	}
+
+	/**
+	 * Selects the applet on the basic channel.
+	 * @throws IllegalStateException if the applet refused to be selected.
+	 */
+	public void select() {
+		if (!this.simulator.selectApplet(APPLET_AID)) {
+			throw new IllegalStateException("Applet refused to be selected.");
+		}
+	}
+
+	/**
+	 * Simulates a card reset (i.e. power cycle). Transient memory is cleared and the applet is selected
+	 * again. Persistent memory is kept.
+	 */
+	public void reset() {
+		this.simulator.reset();
+		this.select();
+	}
+
+	/**
+	 * Generates a key pair on the card and commits it, so the AUTH commands work right away. The DS4ID
+	 * block is left unsigned with an all-zero serial.
+	 * @throws IllegalStateException if the applet refused.
+	 */
+	public void generateIdentity() {
+		try (ISCClient client = new ISCClient(this)) {
+			client.beginStaging();
+			client.generateKeys();
+			client.commit();
+		} catch (CardException e) {
+			throw new IllegalStateException("Failed to generate the identity.", e);
+		}
+	}
+
+	/**
+	 * Returns the ATR of the simulated card.
+	 */
+	public byte[] getATR() {
+		return this.simulator.getATR();
+	}
+
+	/**
+	 * Sends a command APDU to the applet.
+	 * @param command The raw command APDU, short or extended.
+	 * @return The response, including the status word.
+	 */
+	public ResponseAPDU transmit(byte[] command) {
+		return new ResponseAPDU(this.simulator.transmitCommand(command));
+	}
+
+	/**
+	 * Sends a command APDU to the applet.
+	 * @param command The command APDU.
+	 * @return The response, including the status word.
+	 */
+	public ResponseAPDU transmit(CommandAPDU command) {
+		return this.transmit(command.getBytes());
+	}
+
+	/**
+	 * Sends a command APDU to the applet. jCardSim works on arrays so the APDUs are copied in and out, and
+	 * both copies are allocated on every call.
+	 * @see ApduTransport#transmit(ByteBuffer, ByteBuffer)
+	 */
+	@Override
+	public int transmit(ByteBuffer command, ByteBuffer response) {
+		byte[] raw = new byte[command.remaining()];
+		command.get(raw);
+		byte[] result = this.simulator.transmitCommand(raw);
+		response.put(result);
+		return result.length;
+	}
+}
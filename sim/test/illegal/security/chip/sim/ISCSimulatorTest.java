@@ -0,0 +1,527 @@
+package illegal.security.chip.sim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import illegal.security.chip.SignatureEngine;
+import illegal.security.chip.host.ExportType;
+import illegal.security.chip.host.ISCClient;
+import illegal.security.chip.host.ISCProtocol;
+import illegal.security.chip.host.ImportType;
+
+/**
+ * Smoke tests of the applet protocol, driven through {@link ISCSimulator}.
+ */
+public class ISCSimulatorTest {
+	private static final int OFFSET_ID_PUB_N = ISCProtocol.LEN_SERIAL;
+	private static final int OFFSET_ID_PUB_E = OFFSET_ID_PUB_N + ISCProtocol.LEN_INT;
+	/** Same order as the entries of ImportStatus. */
+	private static final int[] IMPORT_AT_TYPES = {
+		ISCProtocol.P1_SERIAL, ISCProtocol.P1_PUB_N, ISCProtocol.P1_PUB_E, ISCProtocol.P1_SIG_ID, ISCProtocol.P1_PRIV_P,
+		ISCProtocol.P1_PRIV_Q, ISCProtocol.P1_PRIV_PQ, ISCProtocol.P1_PRIV_DP1, ISCProtocol.P1_PRIV_DQ1
+	};
+
+	private ISCSimulator simulator;
+	private ISCClient client;
+
+	@Before
+	public void setUp() {
+		this.useSimulator(new ISCSimulator());
+	}
+
+	@After
+	public void tearDown() {
+		this.client.close();
+	}
+
+	@Test
+	public void select() throws Exception {
+		this.client.select();
+		byte[] version = this.client.version();
+		assertArrayEquals(Arrays.copyOf(ISCProtocol.APPLET_AID, 5), Arrays.copyOf(version, 5));
+		assertFalse(this.client.status().isReady());
+	}
+
+	@Test
+	public void authCycle() throws Exception {
+		this.simulator.generateIdentity();
+		assertTrue(this.client.status().isReady());
+
+		byte[] challenge = randomChallenge();
+		this.client.resetAuth();
+		this.client.setChallenge(ByteBuffer.wrap(challenge));
+		ByteBuffer response = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(response);
+		verifyResponse(challenge, response.array());
+	}
+
+	@Test
+	public void authCycleSoftwareEngine() throws Exception {
+		this.useSimulator(new ISCSimulator(SignatureEngine.ENGINE_SOFTWARE_PSS));
+		this.simulator.generateIdentity();
+		byte[] challenge = randomChallenge();
+		this.client.setChallenge(ByteBuffer.wrap(challenge));
+		ByteBuffer response = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(response);
+		verifyResponse(challenge, response.array());
+	}
+
+	@Test
+	public void challengeStatus() throws Exception {
+		this.simulator.generateIdentity();
+		this.client.resetAuth();
+		assertArrayEquals(new byte[] {-1, -1, -1, -1, 0}, this.getChallengeStatus());
+
+		// Pages of 0x40 bytes are 8 blocks each. Skip page 1, i.e. blocks 8-15.
+		byte[] challenge = randomChallenge();
+		int page = 0x40;
+		for (int i : new int[] {0, 2, 3}) {
+			assertSw(0x9000, this.command(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE, page, i,
+					Arrays.copyOfRange(challenge, i * page, (i + 1) * page), 0));
+		}
+		assertArrayEquals(new byte[] {0, 0, -1, 0, 0}, this.getChallengeStatus());
+
+		// Resend the missing page
+		assertSw(0x9000, this.command(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE, page, 1,
+				Arrays.copyOfRange(challenge, page, 2 * page), 0));
+		assertEquals(1, this.getChallengeStatus()[4]);
+		ByteBuffer response = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(response);
+		verifyResponse(challenge, response.array());
+	}
+
+	@Test
+	public void prehashedChallenge() throws Exception {
+		this.simulator.generateIdentity();
+		byte[] challenge = randomChallenge();
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(challenge);
+		assertSw(0x9000, this.command(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE_HASH, 0, 0, hash, 0));
+		ByteBuffer response = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(response);
+		verifyResponse(challenge, response.array());
+
+		// Only the whole hash is accepted.
+		assertSw(0x6700, this.command(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_SET_CHALLENGE_HASH, 0, 0, Arrays.copyOf(hash, 16), 0));
+	}
+
+	@Test
+	public void chainedChallenge() throws Exception {
+		this.simulator.generateIdentity();
+		byte[] challenge = randomChallenge();
+		int block = 0x40;
+		for (int offset = 0; offset < challenge.length; offset += block) {
+			boolean last = offset + block >= challenge.length;
+			int ins = last ? ISCProtocol.INS_AUTH_SET_CHALLENGE : ISCProtocol.INS_AUTH_SET_CHALLENGE_CHAINED;
+			assertSw(0x9000, this.command(ISCProtocol.CLA_AUTH, ins, 0, 0, Arrays.copyOfRange(challenge, offset, offset + block), 0));
+		}
+		ByteBuffer response = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(response);
+		verifyResponse(challenge, response.array());
+	}
+
+	@Test
+	public void responseChaining() throws Exception {
+		this.simulator.generateIdentity();
+		byte[] challenge = randomChallenge();
+		this.client.setChallenge(ByteBuffer.wrap(challenge));
+		ByteBuffer paged = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(paged);
+
+		// P1 = 0 without the chaining selector is a plain read of page 0.
+		ResponseAPDU page = this.command(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_GET_RESPONSE, 0, 0, null, 0x80);
+		assertSw(0x9000, page);
+		assertArrayEquals(Arrays.copyOf(paged.array(), 0x80), page.getData());
+
+		// 61xx chaining
+		ByteArrayOutputStream chained = new ByteArrayOutputStream();
+		ResponseAPDU resp = this.command(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_GET_RESPONSE, 0, ISCProtocol.P2_RESP_CHAIN, null, 0x80);
+		while (resp.getSW1() == ISCProtocol.SW1_BYTES_REMAINING) {
+			chained.write(resp.getData());
+			int le = resp.getSW2() == 0 ? 0x100 : resp.getSW2();
+			resp = this.command(ISCProtocol.CLA_ISO, ISCProtocol.INS_ISO_GET_RESPONSE, 0, 0, null, le);
+		}
+		assertSw(0x9000, resp);
+		chained.write(resp.getData());
+		assertArrayEquals(paged.array(), chained.toByteArray());
+	}
+
+	@Test
+	public void exportChaining() throws Exception {
+		this.simulator.generateIdentity();
+		ByteBuffer ds4Id = ByteBuffer.allocate(ISCProtocol.LEN_ID);
+		assertEquals(ISCProtocol.LEN_ID, this.client.export(ExportType.DS4ID, ds4Id));
+
+		// Short pages, each a plain 9000.
+		for (int page = 0; page * 0x100 < ISCProtocol.LEN_ID; page++) {
+			ResponseAPDU resp = this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_EXPORT, ISCProtocol.P1_DS4ID, page, null, 0x100);
+			assertSw(0x9000, resp);
+			int offset = page * 0x100;
+			assertArrayEquals(Arrays.copyOfRange(ds4Id.array(), offset, Math.min(offset + 0x100, ISCProtocol.LEN_ID)), resp.getData());
+		}
+
+		ByteArrayOutputStream chained = new ByteArrayOutputStream();
+		ResponseAPDU resp = this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_EXPORT, ISCProtocol.P1_DS4ID, ISCProtocol.P2_RESP_CHAIN, null, 0x100);
+		while (resp.getSW1() == ISCProtocol.SW1_BYTES_REMAINING) {
+			chained.write(resp.getData());
+			resp = this.command(ISCProtocol.CLA_ISO, ISCProtocol.INS_ISO_GET_RESPONSE, 0, 0, null, 0x100);
+		}
+		assertSw(0x9000, resp);
+		chained.write(resp.getData());
+		assertArrayEquals(ds4Id.array(), chained.toByteArray());
+	}
+
+	@Test
+	public void importAppliesRightAwayWithoutStaging() throws Exception {
+		this.simulator.generateIdentity();
+		byte[] serial = new byte[ISCProtocol.LEN_SERIAL];
+		Arrays.fill(serial, (byte) 0x42);
+		this.client.importObject(ImportType.SERIAL, ByteBuffer.wrap(serial));
+		assertFalse(this.client.status().hasStagedChanges());
+		assertArrayEquals(serial, this.exportSerial());
+	}
+
+	@Test
+	public void importAndCommit() throws Exception {
+		this.simulator.generateIdentity();
+		RSAPrivateCrtKey key = generateKey();
+		byte[] serial = new byte[ISCProtocol.LEN_SERIAL];
+		Arrays.fill(serial, (byte) 0x24);
+		byte[] oldSerial = this.exportSerial();
+
+		this.client.beginStaging();
+		this.client.importObject(ImportType.SERIAL, ByteBuffer.wrap(serial));
+		this.client.importObject(ImportType.PUB_N, wrap(key.getModulus(), ISCProtocol.LEN_INT));
+		this.client.importObject(ImportType.PUB_E_COMPAT, wrap(key.getPublicExponent(), ISCProtocol.LEN_PUB_E_COMPAT));
+		this.client.importObject(ImportType.SIG_ID, ByteBuffer.allocate(ISCProtocol.LEN_INT));
+		this.client.importObject(ImportType.PRIV_P, wrap(key.getPrimeP(), ISCProtocol.LEN_PQ));
+		this.client.importObject(ImportType.PRIV_Q, wrap(key.getPrimeQ(), ISCProtocol.LEN_PQ));
+		this.client.importObject(ImportType.PRIV_PQ, wrap(key.getCrtCoefficient(), ISCProtocol.LEN_PQ));
+		this.client.importObject(ImportType.PRIV_DP1, wrap(key.getPrimeExponentP(), ISCProtocol.LEN_PQ));
+		this.client.importObject(ImportType.PRIV_DQ1, wrap(key.getPrimeExponentQ(), ISCProtocol.LEN_PQ));
+
+		// Nothing changes before the commit.
+		assertTrue(this.client.status().hasStagedChanges());
+		assertArrayEquals(oldSerial, this.exportSerial());
+
+		this.client.commit();
+		assertFalse(this.client.status().hasStagedChanges());
+		assertArrayEquals(serial, this.exportSerial());
+		this.assertSignedWith(key);
+	}
+
+	@Test
+	public void importAtRetransmitAndResume() throws Exception {
+		this.simulator.generateIdentity();
+		RSAPrivateCrtKey key = generateKey();
+		byte[] serial = new byte[ISCProtocol.LEN_SERIAL];
+		Arrays.fill(serial, (byte) 0x33);
+		byte[][] objects = importAtObjects(key, serial);
+		int chunk = 0x80;
+
+		// Everything but the second half of Q
+		for (int i = 0; i < IMPORT_AT_TYPES.length; i++) {
+			for (int offset = 0; offset < objects[i].length; offset += chunk) {
+				if (IMPORT_AT_TYPES[i] != ISCProtocol.P1_PRIV_Q || offset == 0) {
+					this.importAt(IMPORT_AT_TYPES[i], offset, objects[i], chunk);
+				}
+			}
+		}
+		assertEquals(0xf0, this.importMissing(ISCProtocol.P1_PRIV_Q));
+
+		// A retransmitted block of a complete object must not touch it.
+		this.importAt(ISCProtocol.P1_PRIV_P, 0, objects[4], chunk);
+		this.importAt(ISCProtocol.P1_PUB_N, 0xf0, objects[1], 0x10);
+		assertEquals(0, this.importMissing(ISCProtocol.P1_PRIV_P));
+
+		// Out of range
+		assertSw(0x6700, this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT_AT, ISCProtocol.P1_PRIV_Q, chunk,
+				new byte[chunk + 1], 0));
+		assertSw(0x6b00, this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT_AT, ISCProtocol.P1_PUB_E_COMPAT, 0,
+				new byte[ISCProtocol.LEN_PUB_E_COMPAT], 0));
+
+		// The progress survives a tear.
+		this.simulator.reset();
+		for (int type : IMPORT_AT_TYPES) {
+			assertEquals(type == ISCProtocol.P1_PRIV_Q ? 0xf0 : 0, this.importMissing(type));
+		}
+		this.importAt(ISCProtocol.P1_PRIV_Q, chunk, objects[5], chunk);
+		for (int type : IMPORT_AT_TYPES) {
+			assertEquals(0, this.importMissing(type));
+		}
+
+		assertTrue(this.client.status().hasStagedChanges());
+		this.client.commit();
+		assertArrayEquals(serial, this.exportSerial());
+		this.assertSignedWith(key);
+	}
+
+	@Test
+	public void importBundle() throws Exception {
+		this.simulator.generateIdentity();
+		RSAPrivateCrtKey key = generateKey();
+		byte[] serial = new byte[ISCProtocol.LEN_SERIAL];
+		Arrays.fill(serial, (byte) 0x55);
+		byte[][] objects = importAtObjects(key, serial);
+		// The public exponent can be shorter in a bundle.
+		objects[2] = toUnsigned(key.getPublicExponent(), ISCProtocol.LEN_PUB_E_COMPAT);
+
+		ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+		for (int i = 0; i < IMPORT_AT_TYPES.length; i++) {
+			bundle.write(IMPORT_AT_TYPES[i] == ISCProtocol.P1_PUB_E ? ISCProtocol.P1_PUB_E_COMPAT : IMPORT_AT_TYPES[i]);
+			int length = objects[i].length;
+			if (length >= 0x100) {
+				bundle.write(0x82);
+				bundle.write(length >> 8);
+			} else if (length >= 0x80) {
+				bundle.write(0x81);
+			}
+			bundle.write(length);
+			bundle.write(objects[i]);
+		}
+		this.client.importObject(ImportType.BUNDLE, ByteBuffer.wrap(bundle.toByteArray()));
+
+		// Committed right away
+		assertFalse(this.client.status().hasStagedChanges());
+		assertArrayEquals(serial, this.exportSerial());
+		this.assertSignedWith(key);
+
+		// A malformed bundle leaves the identity alone.
+		assertSw(0x6a80, this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT, ISCProtocol.P1_BUNDLE, 0,
+				new byte[] {(byte) ISCProtocol.P1_SERIAL, 0x20, 0}, 0));
+		assertArrayEquals(serial, this.exportSerial());
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		this.simulator.generateIdentity();
+		ByteBuffer ds4Id = ByteBuffer.allocate(ISCProtocol.LEN_ID);
+		this.client.export(ExportType.DS4ID, ds4Id);
+		int sum = 0;
+		for (int i = 0; i < ISCProtocol.LEN_ID; i += 2) {
+			sum += ds4Id.getShort(i);
+		}
+		int copies = 3;
+
+		ResponseAPDU resp = this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_BENCHMARK, 2, copies, null, 7);
+		assertSw(0x9000, resp);
+		ByteBuffer result = ByteBuffer.wrap(resp.getData());
+		assertEquals(2, result.getShort());
+		assertEquals(copies, result.getShort());
+		assertEquals((short) (sum * copies), result.getShort());
+
+		assertSw(0x6b00, this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_BENCHMARK, 17, 0, null, 7));
+
+		// A signature kept by the session blocks it until AuthReset.
+		this.client.setChallenge(ByteBuffer.wrap(randomChallenge()));
+		assertSw(0x6985, this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_BENCHMARK, 1, 1, null, 7));
+		this.client.resetAuth();
+		assertSw(0x9000, this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_BENCHMARK, 1, 1, null, 7));
+	}
+
+	@Test
+	public void logicalChannels() throws Exception {
+		this.useSimulator(new ISCSimulator(SignatureEngine.ENGINE_AUTO, (byte) 1));
+		this.simulator.generateIdentity();
+		ResponseAPDU resp = this.command(ISCProtocol.CLA_ISO, 0x70, 0, 0, null, 1);
+		assertSw(0x9000, resp);
+		int channel = resp.getData()[0];
+		assertEquals(1, channel);
+		assertSw(0x9000, this.command(ISCProtocol.CLA_ISO | channel, ISCProtocol.INS_ISO_SELECT, ISCProtocol.P1_SELECT_BY_DF_NAME, 0,
+				ISCProtocol.APPLET_AID, 0));
+
+		// Interleave a cycle on each channel. Channel 1 has a buffer of its own, so neither is lost.
+		byte[] challenge1 = randomChallenge();
+		byte[] challenge0 = Arrays.copyOf(challenge1, challenge1.length);
+		challenge0[0] ^= 1;
+		int page = 0x80;
+		for (int i = 0; i * page < challenge1.length; i++) {
+			assertSw(0x9000, this.command(ISCProtocol.CLA_AUTH | channel, ISCProtocol.INS_AUTH_SET_CHALLENGE, page, i,
+					Arrays.copyOfRange(challenge1, i * page, (i + 1) * page), 0));
+		}
+		this.client.setChallenge(ByteBuffer.wrap(challenge0));
+
+		ByteArrayOutputStream response1 = new ByteArrayOutputStream();
+		for (int i = 0; i * page < ISCProtocol.LEN_RESPONSE; i++) {
+			resp = this.command(ISCProtocol.CLA_AUTH | channel, ISCProtocol.INS_AUTH_GET_RESPONSE, page, i, null, page);
+			assertSw(0x9000, resp);
+			response1.write(resp.getData());
+		}
+		verifyResponse(challenge1, response1.toByteArray());
+
+		ByteBuffer response0 = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(response0);
+		verifyResponse(challenge0, response0.array());
+	}
+
+	private void useSimulator(ISCSimulator simulator) {
+		if (this.client != null) {
+			this.client.close();
+		}
+		this.simulator = simulator;
+		this.client = new ISCClient(simulator);
+	}
+
+	/**
+	 * Runs an auth cycle and checks that the response carries the public key of the given key and is
+	 * signed with it.
+	 */
+	private void assertSignedWith(RSAPrivateCrtKey key) throws Exception {
+		byte[] challenge = randomChallenge();
+		this.client.setChallenge(ByteBuffer.wrap(challenge));
+		ByteBuffer response = ByteBuffer.allocate(ISCProtocol.LEN_RESPONSE);
+		this.client.getResponse(response);
+		assertArrayEquals(toUnsigned(key.getModulus(), ISCProtocol.LEN_INT),
+				Arrays.copyOfRange(response.array(), ISCProtocol.LEN_INT + OFFSET_ID_PUB_N, ISCProtocol.LEN_INT + OFFSET_ID_PUB_E));
+		verifyResponse(challenge, response.array());
+	}
+
+	private byte[] getChallengeStatus() {
+		ResponseAPDU resp = this.command(ISCProtocol.CLA_AUTH, ISCProtocol.INS_AUTH_GET_CHALLENGE_STATUS, 0, 0, null, 5);
+		assertSw(0x9000, resp);
+		return resp.getData();
+	}
+
+	private void importAt(int type, int offset, byte[] object, int length) {
+		assertSw(0x9000, this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT_AT, type, offset,
+				Arrays.copyOfRange(object, offset, Math.min(offset + length, object.length)), 0));
+	}
+
+	/**
+	 * Returns the bitmap of missing blocks of an object from ImportStatus.
+	 */
+	private int importMissing(int type) {
+		ResponseAPDU resp = this.command(ISCProtocol.CLA_CONFIG, ISCProtocol.INS_CONFIG_IMPORT_STATUS, 0, 0, null, 0x100);
+		assertSw(0x9000, resp);
+		ByteBuffer status = ByteBuffer.wrap(resp.getData());
+		while (status.hasRemaining()) {
+			int tag = status.get() & 0xff;
+			assertEquals(2, status.get());
+			int missing = status.getShort() & 0xffff;
+			if (tag == type) {
+				return missing;
+			}
+		}
+		throw new AssertionError("No status for " + Integer.toHexString(type));
+	}
+
+	/**
+	 * Returns the objects of the identity, in the order of {@link #IMPORT_AT_TYPES}.
+	 */
+	private static byte[][] importAtObjects(RSAPrivateCrtKey key, byte[] serial) {
+		return new byte[][] {
+			serial,
+			toUnsigned(key.getModulus(), ISCProtocol.LEN_INT),
+			toUnsigned(key.getPublicExponent(), ISCProtocol.LEN_INT),
+			new byte[ISCProtocol.LEN_INT],
+			toUnsigned(key.getPrimeP(), ISCProtocol.LEN_PQ),
+			toUnsigned(key.getPrimeQ(), ISCProtocol.LEN_PQ),
+			toUnsigned(key.getCrtCoefficient(), ISCProtocol.LEN_PQ),
+			toUnsigned(key.getPrimeExponentP(), ISCProtocol.LEN_PQ),
+			toUnsigned(key.getPrimeExponentQ(), ISCProtocol.LEN_PQ),
+		};
+	}
+
+	private static RSAPrivateCrtKey generateKey() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+	}
+
+	private byte[] exportSerial() throws Exception {
+		ByteBuffer serial = ByteBuffer.allocate(ISCProtocol.LEN_SERIAL);
+		this.client.export(ExportType.SERIAL, serial);
+		return serial.array();
+	}
+
+	private ResponseAPDU command(int cla, int ins, int p1, int p2, byte[] data, int le) {
+		ByteArrayOutputStream apdu = new ByteArrayOutputStream();
+		apdu.write(cla);
+		apdu.write(ins);
+		apdu.write(p1);
+		apdu.write(p2);
+		if (data != null) {
+			apdu.write(data.length);
+			apdu.write(data, 0, data.length);
+		}
+		if (le > 0) {
+			apdu.write(le & 0xff);
+		}
+		return this.simulator.transmit(apdu.toByteArray());
+	}
+
+	private static void assertSw(int sw, ResponseAPDU response) {
+		assertEquals(Integer.toHexString(sw), Integer.toHexString(response.getSW()));
+	}
+
+	private static byte[] randomChallenge() {
+		byte[] challenge = new byte[ISCProtocol.LEN_CHALLENGE];
+		new Random(0).nextBytes(challenge);
+		return challenge;
+	}
+
+	private static ByteBuffer wrap(BigInteger value, int length) {
+		return ByteBuffer.wrap(toUnsigned(value, length));
+	}
+
+	private static byte[] toUnsigned(BigInteger value, int length) {
+		byte[] raw = value.toByteArray();
+		byte[] out = new byte[length];
+		int copy = Math.min(raw.length, length);
+		System.arraycopy(raw, raw.length - copy, out, length - copy, copy);
+		return out;
+	}
+
+	/**
+	 * Checks the signature at the start of the response against the public key in the DS4ID block that
+	 * follows it (RSASSA-PSS with SHA-256, MGF1 and a 32 bytes salt).
+	 */
+	private static void verifyResponse(byte[] challenge, byte[] response) throws Exception {
+		int emLength = ISCProtocol.LEN_INT;
+		BigInteger n = new BigInteger(1, Arrays.copyOfRange(response, emLength + OFFSET_ID_PUB_N, emLength + OFFSET_ID_PUB_E));
+		BigInteger e = new BigInteger(1, Arrays.copyOfRange(response, emLength + OFFSET_ID_PUB_E, emLength + OFFSET_ID_PUB_E + ISCProtocol.LEN_INT));
+		byte[] em = toUnsigned(new BigInteger(1, Arrays.copyOf(response, emLength)).modPow(e, n), emLength);
+		assertEquals((byte) 0xbc, em[emLength - 1]);
+
+		MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+		int hashLength = sha256.getDigestLength();
+		int dbLength = emLength - hashLength - 1;
+		byte[] h = Arrays.copyOfRange(em, dbLength, dbLength + hashLength);
+		byte[] db = Arrays.copyOf(em, dbLength);
+		for (int counter = 0, offset = 0; offset < dbLength; counter++) {
+			sha256.update(h);
+			sha256.update(ByteBuffer.allocate(4).putInt(counter).array());
+			byte[] mask = sha256.digest();
+			for (int i = 0; i < mask.length && offset < dbLength; i++, offset++) {
+				db[offset] ^= mask[i];
+			}
+		}
+		db[0] &= 0x7f;
+		int separator = dbLength - hashLength - 1;
+		for (int i = 0; i < separator; i++) {
+			assertEquals(0, db[i]);
+		}
+		assertEquals(1, db[separator]);
+
+		sha256.update(new byte[8]);
+		sha256.update(MessageDigest.getInstance("SHA-256").digest(challenge));
+		sha256.update(db, separator + 1, hashLength);
+		assertArrayEquals(h, sha256.digest());
+	}
+}
@@ -2,47 +2,100 @@ package illegal.security.chip;
 
 import javacard.framework.APDU;
 import javacard.framework.Applet;
+import javacard.framework.CardRuntimeException;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.MultiSelectable;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
-import javacard.security.Signature;
 import javacardx.apdu.ExtendedLength;
 
-public class ISCApplet extends Applet implements ExtendedLength {
+public class ISCApplet extends Applet implements ExtendedLength, MultiSelectable {
 	private static final byte[] VERSION = {0x11, 0x1e, (byte) 0x9a, 0x15, (byte) 0xec, 0x01, 0x00};
-	private static final short LEN_TEMP_STATES = (short) 0x1;
+	// Each logical channel (up to MAX_SESSIONS) gets its own challenge/response session.
+	private static final byte MAX_SESSIONS = (byte) 4;
+	private static final short LEN_SESSION_STATES = (short) 0x9;
+	private static final short LEN_TEMP_STATES = LEN_SESSION_STATES * MAX_SESSIONS;
 	private static final short LEN_DS4RESP_SIG = JediIdentity.RSA2048_INT_SIZE;
-	// Offsets
+	// SHA-256 hash of the challenge, for SetChallengeHash.
+	private static final short LEN_CHALLENGE_HASH = (short) 0x20;
+	// Offsets (relative to the beginning of the session states)
 	private static final short OFFSET_TS_SIG_READ_PROT = (short) 0x0;
+	private static final short OFFSET_TS_CHALLENGE_HASHED = (short) 0x1;
+	private static final short OFFSET_TS_CHAIN_OFFSET = (short) 0x2;
+	// Challenge coverage. Everything before OFFSET_TS_CHALLENGE_WRITTEN has been written, as well as the blocks
+	// (of CHALLENGE_BLOCK_SIZE bytes) with their bits set in the block maps (0-15 in LO and 16-31 in HI).
+	private static final short OFFSET_TS_CHALLENGE_WRITTEN = (short) 0x3;
+	private static final short OFFSET_TS_CHALLENGE_MAP_LO = (short) 0x4;
+	private static final short OFFSET_TS_CHALLENGE_MAP_HI = (short) 0x5;
+
+	private static final short CHALLENGE_BLOCK_SIZE = (short) 0x8;
+	// Response chaining (61xx). Which response is being read with ISO GET RESPONSE and where to continue.
+	private static final short OFFSET_TS_RESP_CHAIN_TYPE = (short) 0x6;
+	private static final short OFFSET_TS_RESP_CHAIN_OFFSET = (short) 0x7;
+	// Everything before this offset of the challenge/signature buffer may contain data and has to be cleared.
+	private static final short OFFSET_TS_SIG_DIRTY_END = (short) 0x8;
+
+	private static final short RESP_CHAIN_NONE = (short) 0;
+	private static final short RESP_CHAIN_DS4RESP = (short) 1;
+	private static final short RESP_CHAIN_DS4RESP_SIG = (short) 2;
+	private static final short RESP_CHAIN_DS4ID = (short) 3;
+
+	// Value of OFFSET_TS_CHALLENGE_HASHED when the challenge has to be hashed in one go after receiving the last page.
+	private static final short CHALLENGE_HASHED_FALLBACK = (short) -1;
+
+	// States of the signature engine (shared by all sessions and kept until card reset)
+	private static final short OFFSET_ES_READY = (short) 0x0;
+	private static final short OFFSET_ES_KEY_EPOCH = (short) 0x1;
+	private static final short LEN_ENGINE_STATES = (short) 0x2;
 
 	private static final short OFFSET_DS4RESP_SIG = (short) 0x0;
-	private static final short OFFSET_DS4RESP_ID_SERIAL = OFFSET_DS4RESP_SIG + LEN_DS4RESP_SIG;
-	private static final short OFFSET_DS4RESP_ID_PUB_N = OFFSET_DS4RESP_ID_SERIAL + JediIdentity.LEN_ID_SERIAL;
-	private static final short OFFSET_DS4RESP_ID_PUB_E = OFFSET_DS4RESP_ID_PUB_N + JediIdentity.LEN_ID_PUB_N;
-	private static final short OFFSET_DS4RESP_ID_SIG = OFFSET_DS4RESP_ID_PUB_E + JediIdentity.LEN_ID_PUB_E;
+	private static final short OFFSET_DS4RESP_ID = OFFSET_DS4RESP_SIG + LEN_DS4RESP_SIG;
 
-	private static final short LEN_DS4RESP = OFFSET_DS4RESP_ID_SIG + JediIdentity.LEN_ID_SIG;
+	private static final short LEN_DS4RESP = OFFSET_DS4RESP_ID + JediIdentity.LEN_ID;
 
 	// APDU classes
 	// https://cardwerk.com/smart-card-standard-iso7816-4-section-5-basic-organizations/
 	private static final byte CLA_AUTH = (byte) 0x80;
 	private static final byte CLA_CONFIG = (byte) 0x90;
+	// ISO 7816-4 logical channel bits.
+	private static final byte CLA_CHANNEL_MASK = (byte) 0x03;
+
+	// ISO 7816-4 GET RESPONSE (with the interindustry CLA)
+	private static final byte INS_ISO_GET_RESPONSE = (byte) 0xc0;
 
 	// APDU commands for CLA_AUTH
 	private static final byte INS_AUTH_SET_CHALLENGE = (byte) 0x44;
 	private static final byte INS_AUTH_GET_RESPONSE = (byte) 0x46;
 	private static final byte INS_AUTH_RESET = (byte) 0x48;
+	private static final byte INS_AUTH_CHALLENGE_RESPONSE = (byte) 0x4a;
+	private static final byte INS_AUTH_GET_FINGERPRINT = (byte) 0x4c;
+	private static final byte INS_AUTH_GET_SIGNATURE = (byte) 0x4e;
+	private static final byte INS_AUTH_GET_CHALLENGE_STATUS = (byte) 0x50;
+	private static final byte INS_AUTH_SET_CHALLENGE_HASH = (byte) 0x52;
+	// SET_CHALLENGE block with more blocks to follow. The chain ends with a plain SET_CHALLENGE.
+	private static final byte INS_AUTH_SET_CHALLENGE_CHAINED = (byte) 0x54;
 
 	// APDU commands for CLA_CONFIG
 	private static final byte INS_CONFIG_GET_VERSION = (byte) 0x00;
 	private static final byte INS_CONFIG_GET_STATUS = (byte) 0x01;
+	private static final byte INS_CONFIG_GET_CAPABILITIES = (byte) 0x02;
+	private static final byte INS_CONFIG_BENCHMARK = (byte) 0x03;
+	private static final byte INS_CONFIG_GET_COUNTERS = (byte) 0x04;
 	private static final byte INS_CONFIG_RESET = (byte) 0x0f;
 	// Import pages
 	private static final byte INS_CONFIG_IMPORT = (byte) 0x10;
+	// Import by offset (resumable) and its progress
+	private static final byte INS_CONFIG_IMPORT_AT = (byte) 0x11;
+	private static final byte INS_CONFIG_IMPORT_STATUS = (byte) 0x12;
 	// Export public pages
 	private static final byte INS_CONFIG_EXPORT = (byte) 0x20;
+	// Activate or throw away the staged identity
+	private static final byte INS_CONFIG_COMMIT = (byte) 0x30;
+	private static final byte INS_CONFIG_DISCARD = (byte) 0x31;
+	// Send Import and GenKeys to the staging slot until Commit or Discard
+	private static final byte INS_CONFIG_BEGIN_STAGING = (byte) 0x32;
 	// Destructive operations. Think twice before proceeding!
 	private static final byte INS_CONFIG_GEN_KEYS = (byte) 0xfd;
 	private static final byte INS_CONFIG_ENTER_STEALTH_MODE = (byte) 0xfe;
@@ -55,23 +108,170 @@ public class ISCApplet extends Applet implements ExtendedLength {
 	private static final byte P1_PUB_E = (byte) 0x02;
 	private static final byte P1_PUB_E_COMPAT = (byte) 0x83;
 	private static final byte P1_SIG_ID = (byte) 0x04;
+	// Export only. The whole signed DS4ID block, paged by P2.
+	private static final byte P1_DS4ID = (byte) 0x08;
 	private static final byte P1_PRIV_P = (byte) 0x10;
 	private static final byte P1_PRIV_Q = (byte) 0x11;
 	private static final byte P1_PRIV_PQ = (byte) 0x12;
 	private static final byte P1_PRIV_DP1 = (byte) 0x13;
 	private static final byte P1_PRIV_DQ1 = (byte) 0x14;
+	// Import only. All of the above in one TLV blob, tagged with their own P1.
+	private static final byte P1_BUNDLE = (byte) 0xc0;
+
+	// Objects reported by ImportStatus.
+	private static final byte[] IMPORT_AT_TYPES = {
+		P1_SERIAL, P1_PUB_N, P1_PUB_E, P1_SIG_ID, P1_PRIV_P, P1_PRIV_Q, P1_PRIV_PQ, P1_PRIV_DP1, P1_PRIV_DQ1
+	};
+
+	// P2 for Import. Marks the last block of an object, which must complete it.
+	private static final byte P2_IMPORT_LAST = (byte) 0x01;
+
+	// P2 for GetResponse and GetSignature with P1 = 0, and for Export of the DS4ID block. Starts a
+	// response chain (61xx) instead of sending a single page.
+	private static final byte P2_RESP_CHAIN = (byte) 0xff;
 
-	private final Signature sigChallenge;
+	// Maximum number of sign operations per Benchmark, so the command returns before reader timeouts.
+	private static final short MAX_BENCHMARK_SIGNS = (short) 16;
+
+	// P1 for GetCounters.
+	private static final byte P1_COUNTERS_READ = (byte) 0x00;
+	private static final byte P1_COUNTERS_READ_AND_RESET = (byte) 0x01;
+
+	// Usage counters. They are followed by one command counter per INS in SUPPORTED_INS_AUTH and then
+	// SUPPORTED_INS_CONFIG, in the same order as reported by capabilities.
+	// Challenges signed.
+	private static final short CNT_SIGN = (short) 0;
+	// Command data bytes received and response data bytes sent.
+	private static final short CNT_BYTES_RECEIVED = (short) 1;
+	private static final short CNT_BYTES_SENT = (short) 2;
+	// Error SW by ISO 7816-4 class: warning (62xx-63xx), execution error (64xx-66xx) and checking error (67xx-6Fxx).
+	private static final short CNT_SW_WARNING = (short) 3;
+	private static final short CNT_SW_EXECUTION_ERROR = (short) 4;
+	private static final short CNT_SW_CHECKING_ERROR = (short) 5;
+	// ISO GET RESPONSE, and commands with unknown CLA or INS.
+	private static final short CNT_INS_ISO_GET_RESPONSE = (short) 6;
+	private static final short CNT_INS_UNKNOWN = (short) 7;
+	private static final short CNT_INS_FIRST = (short) 8;
+
+	// P1 for challenge-response.
+	private static final byte P1_RESPONSE_FULL = (byte) 0x00;
+	private static final byte P1_RESPONSE_SIG_ONLY = (byte) 0x01;
+
+	// Tags for capabilities. Each entry is encoded as 1 byte tag, 1 byte length and the value.
+	// APDU buffer size (2 bytes).
+	private static final byte TAG_CAP_APDU_BUFFER_SIZE = (byte) 0x01;
+	// Incoming and outgoing block size (2 bytes each).
+	private static final byte TAG_CAP_BLOCK_SIZE = (byte) 0x02;
+	// Transport protocol as returned by APDU.getProtocol() (1 byte).
+	private static final byte TAG_CAP_PROTOCOL = (byte) 0x03;
+	// How this very command was received: extended length flag (1 byte), size of the first incoming block
+	// (2 bytes), total incoming bytes (2 bytes) and Le (2 bytes).
+	private static final byte TAG_CAP_PROBE = (byte) 0x04;
+	// Signature algorithm (1 byte) and the active signature engine (1 byte, see SignatureEngine.ENGINE_*).
+	private static final byte TAG_CAP_SIG_ENGINE = (byte) 0x05;
+	// Response size (2 bytes).
+	private static final byte TAG_CAP_RESP_SIZE = (byte) 0x06;
+	// Supported INS for CLA_AUTH and CLA_CONFIG (variable).
+	private static final byte TAG_CAP_INS_AUTH = (byte) 0x07;
+	private static final byte TAG_CAP_INS_CONFIG = (byte) 0x08;
+
+	private static final byte[] SUPPORTED_INS_AUTH = {
+		INS_AUTH_SET_CHALLENGE, INS_AUTH_GET_RESPONSE, INS_AUTH_RESET, INS_AUTH_CHALLENGE_RESPONSE,
+		INS_AUTH_GET_FINGERPRINT, INS_AUTH_GET_SIGNATURE, INS_AUTH_GET_CHALLENGE_STATUS, INS_AUTH_SET_CHALLENGE_HASH,
+		INS_AUTH_SET_CHALLENGE_CHAINED
+	};
+	private static final byte[] SUPPORTED_INS_CONFIG = {
+		INS_CONFIG_GET_VERSION, INS_CONFIG_GET_STATUS, INS_CONFIG_GET_CAPABILITIES, INS_CONFIG_BENCHMARK,
+		INS_CONFIG_GET_COUNTERS, INS_CONFIG_RESET, INS_CONFIG_IMPORT, INS_CONFIG_IMPORT_AT, INS_CONFIG_IMPORT_STATUS,
+		INS_CONFIG_EXPORT, INS_CONFIG_COMMIT, INS_CONFIG_DISCARD, INS_CONFIG_BEGIN_STAGING, INS_CONFIG_GEN_KEYS,
+		INS_CONFIG_ENTER_STEALTH_MODE, INS_CONFIG_NUKE
+	};
+
+	private final SignatureEngine sigEngine;
 	private final JediIdentity id;
 	private final short[] tempStates;
-	private final byte[] signature;
+	/**
+	 * Whether the signature engine is initialized and clean, and the key epoch it was initialized with.
+	 */
+	private final short[] engineStates;
+	private final TransientArena arena;
+	/**
+	 * Challenge/signature buffers of each session, all allocated on install. Sessions without a buffer of
+	 * their own (see {@link #install(byte[], short, byte)}) share the arena with {@link JediIdentity} and
+	 * each other, so the buffer must be leased with {@link #leaseSignature()} before writing to it.
+	 */
+	private final Object[] signatures;
+	private final UsageCounters counters;
 	private boolean stealthMode;
 
-	public ISCApplet() {
+	/**
+	 * @param engineType Which signature engine to use. One of the SignatureEngine.ENGINE_* values.
+	 * @param channelBuffers Number of logical channels (from channel 1 on) that get a challenge/signature
+	 * buffer of their own. Up to MAX_SESSIONS - 1.
+	 */
+	public ISCApplet(byte engineType, byte channelBuffers) {
+		if (channelBuffers < 0 || channelBuffers >= MAX_SESSIONS) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		this.sigEngine = createSignatureEngine(engineType);
+		this.arena = new TransientArena(JediIdentity.RSA2048_INT_SIZE);
+		this.id = new JediIdentity(this.arena);
+		this.tempStates = JCSystem.makeTransientShortArray(LEN_TEMP_STATES, JCSystem.CLEAR_ON_DESELECT);
+		this.engineStates = JCSystem.makeTransientShortArray(LEN_ENGINE_STATES, JCSystem.CLEAR_ON_RESET);
+		this.signatures = new Object[MAX_SESSIONS];
+		this.signatures[0] = this.arena.getBuffer();
+		for (byte i = 1; i < MAX_SESSIONS; i++) {
+			if (i <= channelBuffers) {
+				this.signatures[i] = JCSystem.makeTransientByteArray(LEN_DS4RESP_SIG, JCSystem.CLEAR_ON_DESELECT);
+			} else {
+				this.signatures[i] = this.arena.getBuffer();
+			}
+		}
+		this.counters = new UsageCounters((short) (CNT_INS_FIRST + SUPPORTED_INS_AUTH.length + SUPPORTED_INS_CONFIG.length));
+		this.stealthMode = false;
+	}
+
+	/**
+	 * Installs the applet. The first byte of the applet specific install parameters (if any) selects
+	 * the signature engine, see {@link SignatureEngine}. Defaults to {@link SignatureEngine#ENGINE_AUTO}.
+	 * The second byte (if any) is the number of logical channels that get a challenge/signature buffer of
+	 * their own. Defaults to 0, i.e. all sessions share one buffer.
+	 */
+	public static void install(byte[] bArray, short bOffset, byte bLength)
+			throws ISOException {
+		byte engineType = SignatureEngine.ENGINE_AUTO;
+		byte channelBuffers = 0;
+		// Skip the instance AID and the control info.
+		short offset = (short) (bOffset + (bArray[bOffset] & 0xff) + 1);
+		offset += (short) ((bArray[offset] & 0xff) + 1);
+		if (bArray[offset] > 0) {
+			engineType = bArray[(short) (offset + 1)];
+		}
+		if (bArray[offset] > 1) {
+			channelBuffers = bArray[(short) (offset + 2)];
+		}
+		ISCApplet app = new ISCApplet(engineType, channelBuffers);
+		app.register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+	}
+
+	private static SignatureEngine createSignatureEngine(byte engineType) {
+		if (engineType != SignatureEngine.ENGINE_AUTO && engineType != SignatureEngine.ENGINE_NATIVE_PSS
+				&& engineType != SignatureEngine.ENGINE_SOFTWARE_PSS) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
 		try {
-			this.sigChallenge = Signature.getInstance(Signature.ALG_RSA_SHA_256_PKCS1_PSS, false);
+			if (engineType != SignatureEngine.ENGINE_SOFTWARE_PSS) {
+				try {
+					return new NativePssEngine();
+				} catch (CryptoException e) {
+					// RSA-PSS is not supported. Fall back to the software engine unless asked otherwise.
+					if (engineType == SignatureEngine.ENGINE_NATIVE_PSS || e.getReason() != CryptoException.NO_SUCH_ALGORITHM) {
+						throw (e);
+					}
+				}
+			}
+			return new SoftwarePssEngine();
 		} catch (CryptoException e) {
-			// RSA-PSS is not supported
 			if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
 				ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
 			} else {
@@ -81,33 +281,303 @@ public class ISCApplet extends Applet implements ExtendedLength {
 			// This should never get executed.
 			throw (e);
 		}
-		this.id = new JediIdentity();
-		this.tempStates = JCSystem.makeTransientShortArray(LEN_TEMP_STATES, JCSystem.CLEAR_ON_DESELECT);
-		this.signature = JCSystem.makeTransientByteArray(JediIdentity.RSA2048_INT_SIZE, JCSystem.CLEAR_ON_DESELECT);
-		this.stealthMode = false;
-	}
-
-	public static void install(byte[] bArray, short bOffset, byte bLength)
-			throws ISOException {
-		ISCApplet app = new ISCApplet();
-		app.register(bArray, (short) (bOffset + 1), bArray[bOffset]);
 	}
 
 	/**
-	 * Reset authentication-related states.
+	 * Reset authentication-related states of the current session. The signature engine is only
+	 * re-initialized when it's needed again (see {@link #prepareSigEngine()}), so this is cheap.
 	 */
 	private void reset() {
-		this.sigChallenge.init(this.id.getPrivateKey(), Signature.MODE_SIGN);
+		if (this.getSessionState(OFFSET_TS_CHALLENGE_HASHED) > 0) {
+			this.dropPartialHash();
+		}
+		this.clearChallengeStates();
 		this.signatureSetReadProtect(true);
-		Util.arrayFillNonAtomic(this.signature, (short) 0, (short) this.signature.length, (byte) 0);
+		this.releaseSignature();
+	}
+
+	public boolean select() {
+		return JCSystem.getAssignedChannel() < MAX_SESSIONS;
+	}
+
+	public boolean select(boolean appInstAlreadyActive) {
+		return JCSystem.getAssignedChannel() < MAX_SESSIONS;
+	}
+
+	public void deselect() {
+		this.closeSession();
+	}
+
+	public void deselect(boolean appInstStillActive) {
+		this.closeSession();
+	}
+
+	/**
+	 * Clears the session on the current logical channel. Transient states are only cleared by the JCRE
+	 * once the applet is deselected on all channels so this needs to be done manually.
+	 */
+	private void closeSession() {
+		// Drop any partially hashed challenge so it won't end up in the signature of the next session.
+		if (this.getSessionState(OFFSET_TS_CHALLENGE_HASHED) > 0) {
+			this.dropPartialHash();
+		}
+		this.setSessionState(OFFSET_TS_SIG_READ_PROT, (short) 0);
+		this.clearChallengeStates();
+		this.setSessionState(OFFSET_TS_RESP_CHAIN_TYPE, RESP_CHAIN_NONE);
+		this.releaseSignature();
+	}
+
+	/**
+	 * Clears the challenge/signature buffer of the current session. A buffer leased from the arena is given
+	 * back, so imports, exports and Benchmark don't have to take it over. If someone else holds the
+	 * arena, the data of the session is gone already and their lease is left alone.
+	 */
+	private void releaseSignature() {
+		if (this.isSignatureInArena()) {
+			this.arena.release(this.getArenaOwner());
+			this.setSessionState(OFFSET_TS_SIG_DIRTY_END, (short) 0);
+		} else {
+			this.clearSignature();
+		}
+	}
+
+	private short getSessionState(short offset) {
+		return this.tempStates[(short) (JCSystem.getAssignedChannel() * LEN_SESSION_STATES + offset)];
+	}
+
+	private void setSessionState(short offset, short val) {
+		this.tempStates[(short) (JCSystem.getAssignedChannel() * LEN_SESSION_STATES + offset)] = val;
+	}
+
+	/**
+	 * Returns the challenge/signature buffer of the current session.
+	 */
+	private byte[] getSignatureBuffer() {
+		return (byte[]) this.signatures[JCSystem.getAssignedChannel()];
+	}
+
+	/**
+	 * Returns whether the current session shares the arena instead of having a buffer of its own.
+	 */
+	private boolean isSignatureInArena() {
+		return this.signatures[JCSystem.getAssignedChannel()] == this.arena.getBuffer();
+	}
+
+	/**
+	 * Returns the arena owner tag of the current session.
+	 */
+	private short getArenaOwner() {
+		return (short) (TransientArena.OWNER_AUTH + JCSystem.getAssignedChannel());
+	}
+
+	/**
+	 * Records that the challenge/signature buffer of the current session has been written up to (but not
+	 * including) an offset.
+	 * @param end The offset after the last byte written.
+	 */
+	private void markSignatureDirty(short end) {
+		if (end > this.getSessionState(OFFSET_TS_SIG_DIRTY_END)) {
+			this.setSessionState(OFFSET_TS_SIG_DIRTY_END, end);
+		}
+		if (this.isSignatureInArena()) {
+			this.arena.markDirty(end);
+		}
+	}
+
+	/**
+	 * Clears the part of the challenge/signature buffer of the current session that has been written.
+	 */
+	private void clearSignature() {
+		short dirtyEnd = this.getSessionState(OFFSET_TS_SIG_DIRTY_END);
+		if (dirtyEnd > 0) {
+			Util.arrayFillNonAtomic(this.getSignatureBuffer(), (short) 0, dirtyEnd, (byte) 0);
+			this.setSessionState(OFFSET_TS_SIG_DIRTY_END, (short) 0);
+		}
+	}
+
+	/**
+	 * Leases the signature buffer from the arena, unless the session has a buffer of its own. If the arena
+	 * was used by {@link JediIdentity} or another session in the meantime, the buffered challenge/signature
+	 * is gone and authentication states are reset accordingly.
+	 */
+	private void leaseSignature() {
+		if (!this.isSignatureInArena()) {
+			return;
+		}
+		short owner = this.getArenaOwner();
+		if (this.arena.acquire(owner) != owner) {
+			if (this.getSessionState(OFFSET_TS_CHALLENGE_HASHED) > 0) {
+				this.dropPartialHash();
+			}
+			this.clearChallengeStates();
+			this.signatureSetReadProtect(true);
+			// Cleared by the arena already.
+			this.setSessionState(OFFSET_TS_SIG_DIRTY_END, (short) 0);
+		}
+	}
+
+	/**
+	 * Clears the hashing progress, chaining and coverage states of the challenge of the current session.
+	 * The signature engine must have been taken care of before calling this.
+	 */
+	private void clearChallengeStates() {
+		this.setSessionState(OFFSET_TS_CHALLENGE_HASHED, (short) 0);
+		this.setSessionState(OFFSET_TS_CHAIN_OFFSET, (short) 0);
+		this.clearChallengeCoverage();
+	}
+
+	private void clearChallengeCoverage() {
+		this.setSessionState(OFFSET_TS_CHALLENGE_WRITTEN, (short) 0);
+		this.setSessionState(OFFSET_TS_CHALLENGE_MAP_LO, (short) 0);
+		this.setSessionState(OFFSET_TS_CHALLENGE_MAP_HI, (short) 0);
+	}
+
+	private boolean isChallengeBlockWritten(short block) {
+		if (block < 16) {
+			return (this.getSessionState(OFFSET_TS_CHALLENGE_MAP_LO) & (short) (1 << block)) != 0;
+		}
+		return (this.getSessionState(OFFSET_TS_CHALLENGE_MAP_HI) & (short) (1 << (short) (block - 16))) != 0;
+	}
+
+	/**
+	 * Records a range of the challenge buffer as written. Ranges written in order are tracked byte by byte,
+	 * others are tracked by blocks of {@link #CHALLENGE_BLOCK_SIZE} bytes, counting only the blocks fully
+	 * covered by the range.
+	 * 
+	 * @param offset Offset of the range in the challenge buffer.
+	 * @param len Length of the range.
+	 * @return Whether the whole challenge has been written.
+	 */
+	private boolean markChallengeWritten(short offset, short len) {
+		short end = (short) (offset + len);
+		short written = this.getSessionState(OFFSET_TS_CHALLENGE_WRITTEN);
+		if (offset <= written && end > written) {
+			written = end;
+		}
+
+		short mapLo = this.getSessionState(OFFSET_TS_CHALLENGE_MAP_LO);
+		short mapHi = this.getSessionState(OFFSET_TS_CHALLENGE_MAP_HI);
+		short last = (short) (end / CHALLENGE_BLOCK_SIZE);
+		for (short block = (short) ((short) (offset + CHALLENGE_BLOCK_SIZE - 1) / CHALLENGE_BLOCK_SIZE); block < last; block++) {
+			if (block < 16) {
+				mapLo |= (short) (1 << block);
+			} else {
+				mapHi |= (short) (1 << (short) (block - 16));
+			}
+		}
+		this.setSessionState(OFFSET_TS_CHALLENGE_MAP_LO, mapLo);
+		this.setSessionState(OFFSET_TS_CHALLENGE_MAP_HI, mapHi);
+
+		// Skip over the blocks that were written out of order
+		while (written < LEN_DS4RESP_SIG && this.isChallengeBlockWritten((short) (written / CHALLENGE_BLOCK_SIZE))) {
+			written = (short) ((short) (written / CHALLENGE_BLOCK_SIZE + 1) * CHALLENGE_BLOCK_SIZE);
+		}
+		this.setSessionState(OFFSET_TS_CHALLENGE_WRITTEN, written);
+		return written == LEN_DS4RESP_SIG;
 	}
 
 	private boolean signatureIsReadProtect() {
-		return this.tempStates[OFFSET_TS_SIG_READ_PROT] != 0;
+		// Signature is also gone when the arena is not ours.
+		return this.getSessionState(OFFSET_TS_SIG_READ_PROT) != 0 ||
+				(this.isSignatureInArena() && !this.arena.isOwnedBy(this.getArenaOwner()));
 	}
 
 	private void signatureSetReadProtect(boolean val) {
-		this.tempStates[OFFSET_TS_SIG_READ_PROT] = (short) (val ? 1 : 0);
+		this.setSessionState(OFFSET_TS_SIG_READ_PROT, (short) (val ? 1 : 0));
+	}
+
+	/**
+	 * Returns the logical channel of the session whose partially hashed challenge is held by the
+	 * signature engine, or -1 if there's none.
+	 */
+	private short getHashingSession() {
+		for (short i = 0; i < MAX_SESSIONS; i++) {
+			if (this.tempStates[(short) (i * LEN_SESSION_STATES + OFFSET_TS_CHALLENGE_HASHED)] > 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Drops the partially hashed challenge held by the signature engine (if any). The session it belongs
+	 * to falls back to hash its buffered challenge after receiving the last page. The engine itself is
+	 * re-initialized on next use.
+	 */
+	private void dropPartialHash() {
+		short session = this.getHashingSession();
+		if (session >= 0) {
+			this.tempStates[(short) (session * LEN_SESSION_STATES + OFFSET_TS_CHALLENGE_HASHED)] = CHALLENGE_HASHED_FALLBACK;
+			this.engineStates[OFFSET_ES_READY] = 0;
+		}
+	}
+
+	/**
+	 * Initializes the signature engine with the private key if it hasn't been initialized since card reset,
+	 * if a partial hash was dropped or if the key has changed since then (tracked by the key epoch).
+	 * Does nothing otherwise since loading the key can be expensive on some cards.
+	 */
+	private void prepareSigEngine() {
+		short epoch = this.id.getKeyEpoch();
+		if (this.engineStates[OFFSET_ES_READY] == 0 || this.engineStates[OFFSET_ES_KEY_EPOCH] != epoch) {
+			// Partial hash (if any) will be lost after init.
+			this.dropPartialHash();
+			this.sigEngine.init(this.id.getPrivateKey());
+			this.engineStates[OFFSET_ES_KEY_EPOCH] = epoch;
+			this.engineStates[OFFSET_ES_READY] = 1;
+		}
+	}
+
+	private short countReceived(short len) {
+		this.counters.add(CNT_BYTES_RECEIVED, len);
+		return len;
+	}
+
+	private short countSent(short len) {
+		this.counters.add(CNT_BYTES_SENT, len);
+		return len;
+	}
+
+	/**
+	 * Counts a command by its CLA and INS.
+	 */
+	private void countCommand(byte cla, byte ins) {
+		short index = CNT_INS_UNKNOWN;
+		if (cla == CLA_AUTH) {
+			index = indexOf(SUPPORTED_INS_AUTH, ins);
+			if (index >= 0) {
+				index += CNT_INS_FIRST;
+			}
+		} else if (cla == CLA_CONFIG) {
+			index = indexOf(SUPPORTED_INS_CONFIG, ins);
+			if (index >= 0) {
+				index += (short) (CNT_INS_FIRST + SUPPORTED_INS_AUTH.length);
+			}
+		}
+		if (index < 0) {
+			index = CNT_INS_UNKNOWN;
+		}
+		this.counters.increment(index);
+	}
+
+	private void countStatus(short sw) {
+		byte sw1 = (byte) (sw >> 8);
+		if (sw1 == (byte) 0x62 || sw1 == (byte) 0x63) {
+			this.counters.increment(CNT_SW_WARNING);
+		} else if (sw1 >= (byte) 0x64 && sw1 <= (byte) 0x66) {
+			this.counters.increment(CNT_SW_EXECUTION_ERROR);
+		} else if (sw1 >= (byte) 0x67 && sw1 <= (byte) 0x6f) {
+			this.counters.increment(CNT_SW_CHECKING_ERROR);
+		}
+	}
+
+	private static short indexOf(byte[] list, byte val) {
+		for (short i = 0; i < (short) list.length; i++) {
+			if (list[i] == val) {
+				return i;
+			}
+		}
+		return (short) -1;
 	}
 
 	private static short min(short a, short b) {
@@ -124,52 +594,83 @@ public class ISCApplet extends Applet implements ExtendedLength {
 
 	/**
 	 * <p>
-	 * Handles the request of SetChallenge. Response will be generated after writing to the last byte.
-	 * Note that P1 and P2 are only used for calculating 
+	 * Handles the request of SetChallenge. Response will be generated once every byte of the challenge
+	 * has been written. Note that P1 and P2 are only used for calculating 
 	 * the offset so that the whole challenge can be written in a single extended length APDU
 	 * (by e.g. setting both P1 and P2 to 0). It is also possible to change the block size
 	 * during the transaction.
 	 * </p>
 	 * 
 	 * <p>
+	 * Pages that directly follow the previously received ones are hashed as soon as they arrive so
+	 * the last page only needs to pay for its own data and the RSA operation. Once a page arrives
+	 * out of order (including overlapping or skipped pages caused by changing the block size), the
+	 * applet falls back to hash the whole buffered challenge after the last page is received.
+	 * </p>
+	 * 
+	 * <p>
+	 * The applet keeps track of which parts of the challenge have been written, so a lost page can
+	 * be resent on its own (see {@link #processAuthGetChallengeStatus(APDU)}). Pages written out of order
+	 * are tracked in blocks of {@link #CHALLENGE_BLOCK_SIZE} bytes so they should be aligned to it.
+	 * </p>
+	 * 
+	 * <p>
+	 * Blocks can also be chained so the host doesn't need to calculate offsets. Blocks sent with
+	 * {@link #INS_AUTH_SET_CHALLENGE_CHAINED} are appended to the challenge at the offset tracked by the
+	 * applet and the next plain SET_CHALLENGE is the last block of the chain. P1 and P2 are only used to
+	 * determine the offset of the first block in the chain. Sending any other command in between will
+	 * break the chain. The CLA chaining bit is not used for this since CLA_CONFIG always has it set.
+	 * </p>
+	 * 
+	 * <p>
 	 * Setting offset to be out-of-bound will result in {@link ISOException ISOException} with the SW
 	 * {@link ISO7816#SW_WRONG_P1P2 SW_WRONG_P1P2}. Out-of-bound writes will be ignored.
 	 * </p>
 	 * 
 	 * @param apdu The APDU context.
+	 * @param chained Whether or not more blocks follow.
 	 * @throws ISOException
 	 */
-	private void processAuthSetChallenge(APDU apdu) throws ISOException {
+	private void processAuthSetChallenge(APDU apdu, boolean chained) throws ISOException {
 		// Immediately read protect the signature area
 		this.signatureSetReadProtect(true);
+		this.leaseSignature();
 
 		byte[] buf = apdu.getBuffer();
-		short rectifiedP1, rectifiedP2;
+		byte[] signature = this.getSignatureBuffer();
 
-		// Rectify P1 and P2
-		rectifiedP1 = (short) (buf[ISO7816.OFFSET_P1] & 0xff);
-		rectifiedP2 = (short) (buf[ISO7816.OFFSET_P2] & 0xff);
+		// Continue the chain if there is one. Otherwise calculate offset from P1 and P2.
+		short pageOffset = this.getSessionState(OFFSET_TS_CHAIN_OFFSET);
+		if (pageOffset == 0) {
+			short rectifiedP1, rectifiedP2;
 
-		// Calculate and validate offset
-		short offset = (short) (rectifiedP1 * rectifiedP2);
-		if (offset < 0 || offset >= this.signature.length) {
-			// Offset is out of bound. Panic.
-			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-			return;
+			// Rectify P1 and P2
+			rectifiedP1 = (short) (buf[ISO7816.OFFSET_P1] & 0xff);
+			rectifiedP2 = (short) (buf[ISO7816.OFFSET_P2] & 0xff);
+
+			// Calculate and validate offset
+			pageOffset = (short) (rectifiedP1 * rectifiedP2);
+			if (pageOffset < 0 || pageOffset >= LEN_DS4RESP_SIG) {
+				// Offset is out of bound. Panic.
+				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				return;
+			}
 		}
 		
 		// Get number of total incoming bytes
 		short total = apdu.getIncomingLength();
 
 		// Calculate and validate available space for write
-		short totalWritable = (short) (this.signature.length - offset);
+		short totalWritable = (short) (LEN_DS4RESP_SIG - pageOffset);
 		if (totalWritable < total) {
 			total = totalWritable;
 		}
 
 		// Start reading data to the buffer
+		short offset = pageOffset;
 		short remaining = total;
-		short bytes = apdu.setIncomingAndReceive();
+		this.markSignatureDirty((short) (pageOffset + total));
+		short bytes = this.countReceived(apdu.setIncomingAndReceive());
 		short offsetCdata = apdu.getOffsetCdata();
 		while (bytes > 0) {
 			if (remaining < bytes) {
@@ -178,19 +679,71 @@ public class ISCApplet extends Applet implements ExtendedLength {
 			}
 			if (remaining > 0) {
 				// Copy this chunk
-				offset += Util.arrayCopyNonAtomic(buf, offsetCdata, this.signature, offset, bytes);
+				Util.arrayCopyNonAtomic(buf, offsetCdata, signature, offset, bytes);
+				offset += bytes;
 				remaining -= bytes;
 			}
 			// Receive next chunk (or discard overflowing data)
-			bytes = apdu.receiveBytes(offsetCdata);
+			bytes = this.countReceived(apdu.receiveBytes(offsetCdata));
 		}
 
-		// Just finished writing the last page. Sign the buffered pages.
-		if (totalWritable == total) {
+		// Remember where the next block in the chain goes. The chain ends on the last block.
+		this.setSessionState(OFFSET_TS_CHAIN_OFFSET, chained ? offset : 0);
+
+		// Empty blocks (e.g. at the end of a chain that filled the whole buffer) have nothing to sign.
+		if (total > 0) {
+			this.hashChallengePage(pageOffset, total, this.markChallengeWritten(pageOffset, total));
+		}
+	}
+
+	/**
+	 * Feeds a newly written page of the challenge to the signature engine and signs the challenge
+	 * after the last page is written.
+	 * 
+	 * @param pageOffset Offset of the page in the challenge buffer.
+	 * @param len Length of the page.
+	 * @param last Whether or not the page completes the challenge.
+	 */
+	private void hashChallengePage(short pageOffset, short len, boolean last) {
+		byte[] signature = this.getSignatureBuffer();
+		// Re-initializing the engine turns the session to fallback mode so do this first.
+		this.prepareSigEngine();
+		short hashed = this.getSessionState(OFFSET_TS_CHALLENGE_HASHED);
+
+		if (hashed != pageOffset && hashed != CHALLENGE_HASHED_FALLBACK) {
+			// Page is not contiguous with what we have hashed so far. Drop the partial hash (if any) and
+			// hash everything at the end.
+			if (hashed > 0) {
+				this.dropPartialHash();
+			}
+			hashed = CHALLENGE_HASHED_FALLBACK;
+		} else if (hashed == 0 && this.getHashingSession() >= 0) {
+			// Signature engine is busy hashing the challenge of another session.
+			hashed = CHALLENGE_HASHED_FALLBACK;
+		}
+
+		if (last) {
+			this.markSignatureDirty(LEN_DS4RESP_SIG);
 			// From JavaCard doc: The input and output buffer data may overlap.
-			this.sigChallenge.sign(this.signature, (short) 0, (short) this.signature.length, this.signature, (short) 0);
+			if (hashed == CHALLENGE_HASHED_FALLBACK) {
+				// Take over the signature engine from other sessions
+				this.dropPartialHash();
+				this.prepareSigEngine();
+				this.sigEngine.sign(signature, (short) 0, LEN_DS4RESP_SIG, signature, (short) 0);
+			} else {
+				this.sigEngine.sign(signature, pageOffset, len, signature, (short) 0);
+			}
+			this.counters.increment(CNT_SIGN);
+			// Signature engine is reset after signing. Next challenge can be streamed again.
+			hashed = 0;
+			this.clearChallengeCoverage();
 			this.signatureSetReadProtect(false);
+		} else if (hashed != CHALLENGE_HASHED_FALLBACK) {
+			this.sigEngine.update(signature, pageOffset, len);
+			hashed += len;
 		}
+
+		this.setSessionState(OFFSET_TS_CHALLENGE_HASHED, hashed);
 	}
 
 	/**
@@ -199,10 +752,20 @@ public class ISCApplet extends Applet implements ExtendedLength {
 	 * (by e.g. setting both P1 and P2 to 0). It is also possible to change the block size
 	 * during the transaction.
 	 * 
+	 * If P1 is 0 and P2 is {@link #P2_RESP_CHAIN}, the response is chained instead: if Le doesn't cover the
+	 * whole response, the first Le bytes are returned with SW 61xx and the rest can be read with ISO GET
+	 * RESPONSE (see {@link #processIsoGetResponse(APDU)}). This is useful on T=0 readers and bridges that
+	 * can't do extended length APDUs. Any other P2 with P1 = 0 reads from offset 0 without chaining.
+	 * 
+	 * This is also used by GetSignature, which works the same way but ends after the signature.
+	 * Hosts that have cached the DS4ID (see {@link #processAuthGetFingerprint(APDU)}) can use it to
+	 * skip the static part of the response.
+	 * 
 	 * @param apdu The APDU context.
+	 * @param length Length of the response, i.e. {@link #LEN_DS4RESP} or {@link #LEN_DS4RESP_SIG}.
 	 * @throws ISOException
 	 */
-	private void processAuthGetResponse(APDU apdu) throws ISOException {
+	private void processAuthGetResponse(APDU apdu, short length) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 
 		// Rectify P1 and P2
@@ -212,7 +775,7 @@ public class ISCApplet extends Applet implements ExtendedLength {
 
 		// Calculate and validate offset
 		short offset = (short) (rectifiedP1 * rectifiedP2);
-		if (offset < 0 || offset >= LEN_DS4RESP) {
+		if (offset < 0 || offset >= length) {
 			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
 			return;
 		}
@@ -220,87 +783,249 @@ public class ISCApplet extends Applet implements ExtendedLength {
 		// Determine actual response size.
 		// Accept response size set by the host but only send until the end of the response.
 		short remaining = apdu.setOutgoing();
-		remaining = min(remaining, (short) (LEN_DS4RESP - offset));
-		apdu.setOutgoingLength(remaining);
+		if (rectifiedP1 == 0 && buf[ISO7816.OFFSET_P2] == P2_RESP_CHAIN) {
+			this.sendChainedResponse(apdu, length == LEN_DS4RESP ? RESP_CHAIN_DS4RESP : RESP_CHAIN_DS4RESP_SIG, offset, remaining);
+			return;
+		}
+		remaining = min(remaining, (short) (length - offset));
+		this.sendResponse(apdu, offset, remaining);
+	}
+
+	/**
+	 * Handles ISO GET RESPONSE. Continues the response chain started by GetResponse, GetSignature or Export
+	 * (of {@link #P1_DS4ID}) with up to Le bytes. As long as there's more data left, SW 61xx is returned
+	 * with xx being the number of remaining bytes (or 00 if there are 256 or more). Any other command ends
+	 * the chain.
+	 * 
+	 * Returns {@link ISO7816#SW_CONDITIONS_NOT_SATISFIED SW_CONDITIONS_NOT_SATISFIED} if there's nothing to
+	 * continue.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processIsoGetResponse(APDU apdu) {
+		short type = this.getSessionState(OFFSET_TS_RESP_CHAIN_TYPE);
+		if (type == RESP_CHAIN_NONE) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			return;
+		}
+		short ne = apdu.setOutgoing();
+		this.sendChainedResponse(apdu, type, this.getSessionState(OFFSET_TS_RESP_CHAIN_OFFSET), ne);
+	}
+
+	/**
+	 * Sends up to Ne bytes of a response and sets up the response chain (61xx) if there's more data left.
+	 * 
+	 * @param apdu The APDU context. Must be in outgoing mode.
+	 * @param type Type of the response (RESP_CHAIN_*).
+	 * @param offset Offset of the data to send.
+	 * @param ne Maximum number of bytes to send.
+	 */
+	private void sendChainedResponse(APDU apdu, short type, short offset, short ne) {
+		short end;
+		switch (type) {
+		case RESP_CHAIN_DS4RESP:
+			end = LEN_DS4RESP;
+			break;
+		case RESP_CHAIN_DS4RESP_SIG:
+			end = LEN_DS4RESP_SIG;
+			break;
+		default:
+			end = JediIdentity.LEN_ID;
+		}
+		short len = min(ne, (short) (end - offset));
+		if (type == RESP_CHAIN_DS4ID) {
+			this.sendDs4Id(apdu, offset, len);
+		} else {
+			this.sendResponse(apdu, offset, len);
+		}
+
+		offset += len;
+		short remaining = (short) (end - offset);
+		if (remaining > 0) {
+			this.setSessionState(OFFSET_TS_RESP_CHAIN_TYPE, type);
+			this.setSessionState(OFFSET_TS_RESP_CHAIN_OFFSET, offset);
+			ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | (remaining > 0xff ? 0 : remaining)));
+		} else {
+			this.setSessionState(OFFSET_TS_RESP_CHAIN_TYPE, RESP_CHAIN_NONE);
+		}
+	}
+
+	/**
+	 * Handles the request of GetFingerprint. Returns the SHA-256 fingerprint of the DS4ID part of the response,
+	 * which only changes when the identity gets modified.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processAuthGetFingerprint(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		Util.arrayCopyNonAtomic(this.id.getDs4IdFingerprint(), (short) 0, buf, (short) 0, JediIdentity.LEN_ID_FINGERPRINT);
+		apdu.setOutgoingAndSend((short) 0, this.countSent(JediIdentity.LEN_ID_FINGERPRINT));
+	}
+
+	/**
+	 * Handles the request of SetChallengeHash. Signs the SHA-256 hash of the challenge calculated by the
+	 * host instead of the challenge itself, so only {@link #LEN_CHALLENGE_HASH} bytes need to be sent.
+	 * The response can then be read with GetResponse or GetSignature like after SetChallenge.
+	 * 
+	 * Any challenge being written in this session is dropped. Challenges being streamed in other
+	 * sessions will be hashed in one go after their last page instead.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processAuthSetChallengeHash(APDU apdu) {
+		this.signatureSetReadProtect(true);
+		this.leaseSignature();
+
+		byte[] buf = apdu.getBuffer();
+		short len = this.countReceived(apdu.setIncomingAndReceive());
+		if (len != LEN_CHALLENGE_HASH || apdu.getIncomingLength() != LEN_CHALLENGE_HASH) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+
+		// The hash calculated so far (if any) is lost when signing a prehashed challenge.
+		this.dropPartialHash();
+		this.clearChallengeStates();
+		this.prepareSigEngine();
+		this.markSignatureDirty(LEN_DS4RESP_SIG);
+		this.sigEngine.signPreComputedHash(buf, apdu.getOffsetCdata(), LEN_CHALLENGE_HASH, this.getSignatureBuffer(), (short) 0);
+		this.counters.increment(CNT_SIGN);
+		this.signatureSetReadProtect(false);
+	}
+
+	/**
+	 * Handles the request of GetChallengeStatus. Returns the blocks of the challenge that are still missing
+	 * as a 4 bytes big-endian bitmap where bit n is set if block n (i.e. bytes n * {@link #CHALLENGE_BLOCK_SIZE}
+	 * onwards) hasn't been written, followed by 1 byte that is set to 1 if the response is ready.
+	 * 
+	 * Once the response is ready the map is cleared for the next challenge, i.e. all blocks are reported
+	 * as missing.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processAuthGetChallengeStatus(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		short writtenBlocks = (short) (this.getSessionState(OFFSET_TS_CHALLENGE_WRITTEN) / CHALLENGE_BLOCK_SIZE);
+		short missingLo = 0;
+		short missingHi = 0;
+		for (short block = 0; block < (short) (LEN_DS4RESP_SIG / CHALLENGE_BLOCK_SIZE); block++) {
+			if (block >= writtenBlocks && !this.isChallengeBlockWritten(block)) {
+				if (block < 16) {
+					missingLo |= (short) (1 << block);
+				} else {
+					missingHi |= (short) (1 << (short) (block - 16));
+				}
+			}
+		}
+		short offset = Util.setShort(buf, (short) 0, missingHi);
+		offset = Util.setShort(buf, offset, missingLo);
+		buf[offset++] = (byte) (this.signatureIsReadProtect() ? 0 : 1);
+		apdu.setOutgoingAndSend((short) 0, this.countSent(offset));
+	}
+
+	/**
+	 * Handles the request of ChallengeResponse. The whole challenge is sent in the command data and the
+	 * response is returned in the same APDU, which saves the round trips of a paged SetChallenge/GetResponse
+	 * cycle. This requires extended length APDU support from both the card and the reader.
+	 * 
+	 * P1 selects the response format: {@link #P1_RESPONSE_FULL} returns the whole response while
+	 * {@link #P1_RESPONSE_SIG_ONLY} only returns the signature part. The challenge must be exactly
+	 * {@link JediIdentity#RSA2048_INT_SIZE} bytes long and Le must cover the selected response, otherwise
+	 * {@link ISO7816#SW_WRONG_LENGTH SW_WRONG_LENGTH} will be returned.
+	 * 
+	 * @param apdu The APDU context.
+	 * @throws ISOException
+	 */
+	private void processAuthChallengeResponse(APDU apdu) throws ISOException {
+		// Immediately read protect the signature area
+		this.signatureSetReadProtect(true);
+		this.leaseSignature();
+
+		byte[] buf = apdu.getBuffer();
+		byte[] signature = this.getSignatureBuffer();
+
+		short responseLength;
+		switch (buf[ISO7816.OFFSET_P1]) {
+		case P1_RESPONSE_FULL:
+			responseLength = LEN_DS4RESP;
+			break;
+		case P1_RESPONSE_SIG_ONLY:
+			responseLength = LEN_DS4RESP_SIG;
+			break;
+		default:
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+			return;
+		}
+
+		if (apdu.getIncomingLength() != LEN_DS4RESP_SIG) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+
+		// Receive the challenge and hash each chunk as soon as it arrives. Whatever was written by
+		// SetChallenge before doesn't count.
+		this.clearChallengeCoverage();
+		this.markSignatureDirty(LEN_DS4RESP_SIG);
+		short offset = 0;
+		short bytes = this.countReceived(apdu.setIncomingAndReceive());
+		short offsetCdata = apdu.getOffsetCdata();
+		while (bytes > 0) {
+			Util.arrayCopyNonAtomic(buf, offsetCdata, signature, offset, bytes);
+			this.hashChallengePage(offset, bytes, this.markChallengeWritten(offset, bytes));
+			offset += bytes;
+			bytes = this.countReceived(apdu.receiveBytes(offsetCdata));
+		}
+
+		short expected = apdu.setOutgoing();
+		if (expected < responseLength) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+		this.sendResponse(apdu, OFFSET_DS4RESP_SIG, responseLength);
+	}
+
+	/**
+	 * Sends part of the response. The caller must have already called {@link APDU#setOutgoing()} and
+	 * made sure that the requested range is within the response.
+	 * 
+	 * @param apdu The APDU context.
+	 * @param offset Offset in the response to start sending from.
+	 * @param remaining Number of bytes to send.
+	 */
+	private void sendResponse(APDU apdu, short offset, short remaining) {
+		byte[] buf = apdu.getBuffer();
+		apdu.setOutgoingLength(this.countSent(remaining));
 
 		// Send until we have nothing to send
+		byte[] ds4Id = this.id.getDs4Id();
 		while (remaining > 0) {
 			// Counter for total number of data written (actual chunk size)
 			short chunkUsed = 0;
 			// Determine chunk size
 			short chunkFree = min((short) buf.length, remaining);
 
-			// fill the buffer
-			while (chunkFree > 0) {
-				short copySize = 0;
-				if (offset >= OFFSET_DS4RESP_SIG && offset < OFFSET_DS4RESP_ID_SERIAL) {
-					// Relative offset
-					short relOffset = (short) (offset - OFFSET_DS4RESP_SIG);
-					copySize = (short) (LEN_DS4RESP_SIG - relOffset);
-
-					// Calculate copy size (total bytes available for chunk or payload size, whichever smaller)
-					copySize = min(chunkFree, copySize);
-
-					// Populate the buffer with payload
-					if (this.signatureIsReadProtect()) {
-						Util.arrayFillNonAtomic(buf, chunkUsed, copySize, (byte) 0);
-					} else {
-						Util.arrayCopyNonAtomic(this.signature, relOffset, buf, chunkUsed, copySize);
-					}
-				} else if (offset >= OFFSET_DS4RESP_ID_SERIAL && offset < OFFSET_DS4RESP_ID_PUB_N) {
-					// Relative offset
-					short relOffset = (short) (offset - OFFSET_DS4RESP_ID_SERIAL);
-					copySize = (short) (JediIdentity.LEN_ID_SERIAL - relOffset);
-
-					// Calculate copy size (total bytes available for chunk or payload size, whichever smaller)
-					copySize = min(chunkFree, copySize);
-
-					// Populate the buffer with payload
-					Util.arrayCopyNonAtomic(this.id.getSerialNumber(), relOffset, buf, chunkUsed, copySize);
-				} else if (offset >= OFFSET_DS4RESP_ID_PUB_N && offset < OFFSET_DS4RESP_ID_PUB_E) {
-					// Relative offset
-					short relOffset = (short) (offset - OFFSET_DS4RESP_ID_PUB_N);
-					copySize = (short) (JediIdentity.LEN_ID_PUB_N - relOffset);
-
-					// Calculate copy size (total bytes available for chunk or payload size, whichever smaller)
-					copySize = min(chunkFree, copySize);
-
-					// Populate the buffer with payload
-					Util.arrayCopyNonAtomic(this.id.exportPublicKeyN(), relOffset, buf, chunkUsed, copySize);
-					this.id.finishExport();
-				} else if (offset >= OFFSET_DS4RESP_ID_PUB_E && offset < OFFSET_DS4RESP_ID_SIG) {
-					// Relative offset
-					short relOffset = (short) (offset - OFFSET_DS4RESP_ID_PUB_E);
-
-					copySize = (short) (JediIdentity.LEN_ID_PUB_E - relOffset);
-
-					// Calculate copy size (total bytes available for chunk or payload size, whichever smaller)
-					copySize = min(chunkFree, copySize);
-
-					// Populate the buffer with payload
-					Util.arrayCopyNonAtomic(this.id.exportPublicKeyE(), relOffset, buf, chunkUsed, copySize);
-					this.id.finishExport();
-				} else if (offset >= OFFSET_DS4RESP_ID_SIG && offset < LEN_DS4RESP) {
-					// Relative offset
-					short relOffset = (short) (offset - OFFSET_DS4RESP_ID_SIG);
-					copySize = (short) (JediIdentity.LEN_ID_SIG - relOffset);
-
-					// Calculate copy size (total bytes available for chunk or payload size, whichever smaller)
-					copySize = min(chunkFree, copySize);
-
-					// Populate the buffer with payload
-					Util.arrayCopyNonAtomic(this.id.getIdSig(), relOffset, buf, chunkUsed, copySize);
+			// Response signature part
+			if (offset < OFFSET_DS4RESP_ID) {
+				chunkUsed = min(chunkFree, (short) (OFFSET_DS4RESP_ID - offset));
+				if (this.signatureIsReadProtect()) {
+					Util.arrayFillNonAtomic(buf, (short) 0, chunkUsed, (byte) 0);
+				} else {
+					Util.arrayCopyNonAtomic(this.getSignatureBuffer(), (short) (offset - OFFSET_DS4RESP_SIG), buf, (short) 0, chunkUsed);
 				}
-				// Increment chunk size counter
-				chunkUsed += copySize;
-				// Update free space available for the chunk
-				chunkFree -= copySize;
-
-				// Update remaining bytes to send
-				remaining -= copySize;
-				// Update offset
-				offset += copySize;
+				chunkFree -= chunkUsed;
+				offset += chunkUsed;
+			}
+
+			// DS4ID part. Since the chunk never goes past the end of the response, the rest of the chunk can be
+			// filled in one go.
+			if (chunkFree > 0) {
+				Util.arrayCopyNonAtomic(ds4Id, (short) (offset - OFFSET_DS4RESP_ID), buf, chunkUsed, chunkFree);
+				chunkUsed += chunkFree;
+				offset += chunkFree;
 			}
+
+			// Update remaining bytes to send
+			remaining -= chunkUsed;
 			// Send the chunk when it's ready
 			apdu.sendBytes((short) 0, chunkUsed);
 		}
@@ -309,26 +1034,206 @@ public class ISCApplet extends Applet implements ExtendedLength {
 	private void processGetVersion(APDU apdu) {
 		byte[] buf = apdu.getBuffer();
 		Util.arrayCopyNonAtomic(VERSION, (short) 0, buf, (short) 0, (short) VERSION.length);
-		apdu.setOutgoingAndSend((short) 0, (short) VERSION.length);
+		apdu.setOutgoingAndSend((short) 0, this.countSent((short) VERSION.length));
 	}
 
 	private void processGetStatus(APDU apdu) {
 		byte[] buf = apdu.getBuffer();
 		buf[0] = (byte) (this.id.isReady() ? 1 : 0);
-		apdu.setOutgoingAndSend((short) 0, (short) 1);
+		buf[1] = (byte) (this.id.hasStagedChanges() ? 1 : 0);
+		apdu.setOutgoingAndSend((short) 0, this.countSent((short) 2));
+	}
+
+	/**
+	 * Handles the request of GetCounters. Returns the number of counters (1 byte) followed by the total of
+	 * each counter (4 bytes each, big-endian, see CNT_*). Counters are cleared after reading if P1 is
+	 * {@link #P1_COUNTERS_READ_AND_RESET}.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processGetCounters(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		byte p1 = buf[ISO7816.OFFSET_P1];
+		if (p1 != P1_COUNTERS_READ && p1 != P1_COUNTERS_READ_AND_RESET) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			return;
+		}
+
+		short offset = 0;
+		buf[offset++] = (byte) this.counters.getCount();
+		offset = this.counters.read(buf, offset);
+		if (p1 == P1_COUNTERS_READ_AND_RESET) {
+			this.counters.reset();
+		}
+		apdu.setOutgoingAndSend((short) 0, offset);
+	}
+
+	/**
+	 * Handles the request of GetCapabilities. Reports transport related parameters as a list of TLV
+	 * entries (see TAG_CAP_*) so the host can tune the page size without probing by trial and error.
+	 * 
+	 * The host can optionally send probe data in an extended length APDU. The applet reports how the
+	 * data arrived, which tells whether extended length APDUs actually work end to end.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processGetCapabilities(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+
+		// Drain the probe data and record how it arrived
+		short firstBlock = this.countReceived(apdu.setIncomingAndReceive());
+		boolean extended = apdu.getOffsetCdata() == ISO7816.OFFSET_EXT_CDATA;
+		short received = 0;
+		short bytes = firstBlock;
+		while (bytes > 0) {
+			received += bytes;
+			bytes = this.countReceived(apdu.receiveBytes(apdu.getOffsetCdata()));
+		}
+
+		short le = apdu.setOutgoing();
+		if (le > (short) 0x100) {
+			extended = true;
+		}
+
+		short offset = 0;
+		offset = putTlvHeader(buf, offset, TAG_CAP_APDU_BUFFER_SIZE, (short) 2);
+		offset = Util.setShort(buf, offset, (short) buf.length);
+
+		offset = putTlvHeader(buf, offset, TAG_CAP_BLOCK_SIZE, (short) 4);
+		offset = Util.setShort(buf, offset, APDU.getInBlockSize());
+		offset = Util.setShort(buf, offset, APDU.getOutBlockSize());
+
+		offset = putTlvHeader(buf, offset, TAG_CAP_PROTOCOL, (short) 1);
+		buf[offset++] = APDU.getProtocol();
+
+		offset = putTlvHeader(buf, offset, TAG_CAP_PROBE, (short) 7);
+		buf[offset++] = (byte) (extended ? 1 : 0);
+		offset = Util.setShort(buf, offset, firstBlock);
+		offset = Util.setShort(buf, offset, received);
+		offset = Util.setShort(buf, offset, le);
+
+		offset = putTlvHeader(buf, offset, TAG_CAP_SIG_ENGINE, (short) 2);
+		buf[offset++] = this.sigEngine.getAlgorithm();
+		buf[offset++] = this.sigEngine.getType();
+
+		offset = putTlvHeader(buf, offset, TAG_CAP_RESP_SIZE, (short) 2);
+		offset = Util.setShort(buf, offset, LEN_DS4RESP);
+
+		offset = putTlvHeader(buf, offset, TAG_CAP_INS_AUTH, (short) SUPPORTED_INS_AUTH.length);
+		offset = Util.arrayCopyNonAtomic(SUPPORTED_INS_AUTH, (short) 0, buf, offset, (short) SUPPORTED_INS_AUTH.length);
+
+		offset = putTlvHeader(buf, offset, TAG_CAP_INS_CONFIG, (short) SUPPORTED_INS_CONFIG.length);
+		offset = Util.arrayCopyNonAtomic(SUPPORTED_INS_CONFIG, (short) 0, buf, offset, (short) SUPPORTED_INS_CONFIG.length);
+
+		offset = min(le, offset);
+		apdu.setOutgoingLength(this.countSent(offset));
+		apdu.sendBytes((short) 0, offset);
+	}
+
+	private static short putTlvHeader(byte[] buf, short offset, byte tag, short len) {
+		buf[offset++] = tag;
+		buf[offset++] = (byte) len;
+		return offset;
 	}
 
+	/**
+	 * Handles the request of Benchmark. Runs P1 sign operations (up to {@link #MAX_BENCHMARK_SIGNS}) with
+	 * the challenge signature engine on dummy data and P2 copies of the DS4ID block, entirely on card, so
+	 * the host can time the command without any transport in the loop. P1 above the limit is rejected with
+	 * {@link ISO7816#SW_WRONG_P1P2 SW_WRONG_P1P2}.
+	 * 
+	 * Returns the number of sign operations (2 bytes), the number of copies (2 bytes), a checksum (2 bytes,
+	 * the sum of all shorts) of the copied data and the active signature engine (1 byte, see
+	 * SignatureEngine.ENGINE_*). The signatures are salted so they are left out of the checksum.
+	 * 
+	 * The work is done in the arena. To leave every session as it was, this will be rejected with
+	 * {@link ISO7816#SW_CONDITIONS_NOT_SATISFIED SW_CONDITIONS_NOT_SATISFIED} while any session keeps a
+	 * challenge or signature in the arena (send AuthReset first), while a challenge is being hashed (the
+	 * signature engine is shared), while a key object is being imported, or when the card is not ready.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processBenchmark(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		short signIterations = (short) (buf[ISO7816.OFFSET_P1] & 0xff);
+		short copyIterations = (short) (buf[ISO7816.OFFSET_P2] & 0xff);
+
+		if (signIterations > MAX_BENCHMARK_SIGNS) {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+			return;
+		}
+		if (!this.id.isReady() || this.getHashingSession() >= 0 || this.id.getCurrentImportOffset() != 0
+				|| this.arena.getOwner() >= TransientArena.OWNER_AUTH) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			return;
+		}
+
+		// Dummy data and the signature are kept in the arena.
+		byte[] scratch = this.arena.getBuffer();
+		this.arena.acquire(TransientArena.OWNER_BENCHMARK);
+		this.arena.markDirty(LEN_DS4RESP_SIG);
+		short checksum = 0;
+
+		this.prepareSigEngine();
+		Util.arrayFillNonAtomic(scratch, (short) 0, LEN_DS4RESP_SIG, (byte) 0x5a);
+		for (short i = 0; i < signIterations; i++) {
+			APDU.waitExtension();
+			this.sigEngine.sign(scratch, (short) 0, LEN_DS4RESP_SIG, scratch, (short) 0);
+		}
+
+		byte[] ds4Id = this.id.getDs4Id();
+		for (short i = 0; i < copyIterations; i++) {
+			short offset = 0;
+			while (offset < JediIdentity.LEN_ID) {
+				short copySize = min(LEN_DS4RESP_SIG, (short) (JediIdentity.LEN_ID - offset));
+				Util.arrayCopyNonAtomic(ds4Id, offset, scratch, (short) 0, copySize);
+				// The block and thus every chunk has an even length.
+				for (short j = 0; j < copySize; j += 2) {
+					checksum += Util.getShort(scratch, j);
+				}
+				offset += copySize;
+			}
+		}
+		this.arena.release(TransientArena.OWNER_BENCHMARK);
+
+		short offset = 0;
+		offset = Util.setShort(buf, offset, signIterations);
+		offset = Util.setShort(buf, offset, copyIterations);
+		offset = Util.setShort(buf, offset, checksum);
+		buf[offset++] = this.sigEngine.getType();
+		apdu.setOutgoingAndSend((short) 0, this.countSent(offset));
+	}
+
+	/**
+	 * Handles the request of Import. Data of paged key objects are appended to the object being imported
+	 * until the whole object is received, so blocks of any size can be used.
+	 * 
+	 * The last block can be marked with P2 = {@link #P2_IMPORT_LAST}, in which case the object being
+	 * imported must be complete or the import will be discarded with
+	 * {@link ISO7816#SW_WRONG_LENGTH SW_WRONG_LENGTH}. Blocks with P2 = 0 just append to the object. The CLA
+	 * chaining bit is not used for this since CLA_CONFIG always has it set.
+	 * 
+	 * Imported objects (as well as generated keys) take effect right away, unless BeginStaging was sent
+	 * first. In that case they are written to the staging identity slot and only take effect after Commit,
+	 * so an interrupted import never damages the active identity.
+	 * 
+	 * @param apdu The APDU context.
+	 */
 	private void processImport(APDU apdu) {
 		byte[] buf = apdu.getBuffer();
 		byte importType;
 
 		importType = buf[ISO7816.OFFSET_P1];
+		if (importType == P1_BUNDLE) {
+			this.processImportBundle(apdu);
+			return;
+		}
 
 		// Get number of total incoming bytes
 		short total = apdu.getIncomingLength();
 
 		// Start reading data to the buffer
-		short bytes = apdu.setIncomingAndReceive();
+		short bytes = this.countReceived(apdu.setIncomingAndReceive());
 		short offsetCdata = apdu.getOffsetCdata();
 		while (bytes > 0) {
 			switch (importType) {
@@ -377,7 +1282,260 @@ public class ISCApplet extends Applet implements ExtendedLength {
 				return;
 			}
 			// Receive next chunk (or discard overflowing data)
-			bytes = apdu.receiveBytes(offsetCdata);
+			bytes = this.countReceived(apdu.receiveBytes(offsetCdata));
+		}
+
+		// Last block of the object but the object is still incomplete.
+		if (buf[ISO7816.OFFSET_P2] == P2_IMPORT_LAST && this.id.getCurentImport() != JediIdentity.KEY_TYPE_UNSPECIFIED) {
+			this.id.reset();
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+	}
+
+	/**
+	 * Handles the request of ImportAt. P1 is the import type (same as Import, except
+	 * {@link #P1_PUB_E_COMPAT} which is not supported) and P2 is the offset within the object where the
+	 * data goes.
+	 * 
+	 * Unlike Import, blocks can be sent in any order, retransmitted, and objects can be interleaved.
+	 * The data goes straight to persistent memory and the progress is tracked per
+	 * {@link JediIdentity#IMPORT_BLOCK_SIZE} bytes block, so the import survives deselects and card tears.
+	 * Blocks only partially covered by a request are not counted as received. Use ImportStatus to find out
+	 * which blocks are still missing. Each object takes effect (in the staging slot) once all of its
+	 * blocks have been received, after which further blocks of it are ignored until the staged changes are
+	 * committed or discarded.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processImportAt(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		byte importType = buf[ISO7816.OFFSET_P1];
+		short objOffset = (short) (buf[ISO7816.OFFSET_P2] & 0xff);
+		short keyType = importTypeToKeyType(importType);
+		if (keyType == JediIdentity.KEY_TYPE_UNSPECIFIED || importType == P1_PUB_E_COMPAT) {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+			return;
+		}
+
+		// Validate the whole range first so nothing gets written if it overflows.
+		short total = apdu.getIncomingLength();
+		if (total > (short) (JediIdentity.getKeyObjectSize(keyType) - objOffset)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+
+		short offset = objOffset;
+		short bytes = this.countReceived(apdu.setIncomingAndReceive());
+		short offsetCdata = apdu.getOffsetCdata();
+		while (bytes > 0) {
+			this.id.putKeyObjectAt(buf, offsetCdata, bytes, keyType, offset);
+			offset += bytes;
+			bytes = this.countReceived(apdu.receiveBytes(offsetCdata));
+		}
+		this.id.markKeyObjectReceived(keyType, objOffset, (short) (offset - objOffset));
+	}
+
+	/**
+	 * Handles the request of ImportStatus. Reports the blocks that are still missing for each object as a
+	 * list of TLV entries, tagged with the import type of the object. The value is a 2 bytes bitmap where
+	 * bit n is set if block n (i.e. bytes n * {@link JediIdentity#IMPORT_BLOCK_SIZE} onwards) is missing.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processImportStatus(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		short offset = 0;
+		for (short i = 0; i < (short) IMPORT_AT_TYPES.length; i++) {
+			byte importType = IMPORT_AT_TYPES[i];
+			offset = putTlvHeader(buf, offset, importType, (short) 2);
+			offset = Util.setShort(buf, offset, this.id.getKeyObjectMissing(importTypeToKeyType(importType)));
+		}
+		apdu.setOutgoingAndSend((short) 0, this.countSent(offset));
+	}
+
+	/**
+	 * Handles the request of Import with {@link #P1_BUNDLE}. The whole identity (or any part of it) is sent
+	 * in one (extended length) APDU as a sequence of TLVs, each tagged with the P1 that would be used to
+	 * import that object individually and with a BER-TLV length (1 to 3 bytes). Every object must be
+	 * complete, except the public exponent which can be of any size up to 256 bytes.
+	 * 
+	 * The whole blob must fit in the APDU buffer, so objects can be written to the key objects directly
+	 * without going through the scratch pad. Cards with a small APDU buffer will reject it with
+	 * {@link ISO7816#SW_WRONG_LENGTH SW_WRONG_LENGTH}, in which case the host should fall back to
+	 * importing objects one by one. The headers are checked before anything is written, so a malformed
+	 * blob is rejected with {@link ISO7816#SW_WRONG_DATA SW_WRONG_DATA} without touching the identity.
+	 * The bundle always goes through the staging slot and is committed (together with anything staged
+	 * before it) right away.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processImportBundle(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		short total = apdu.getIncomingLength();
+		short offsetCdata = apdu.getOffsetCdata();
+
+		if (total == 0 || total > (short) (buf.length - offsetCdata)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+
+		// Receive the whole blob
+		short received = this.countReceived(apdu.setIncomingAndReceive());
+		while (received < total) {
+			received += this.countReceived(apdu.receiveBytes((short) (offsetCdata + received)));
+		}
+
+		// Any paged import in progress is abandoned.
+		this.id.reset();
+		this.id.beginStaging();
+
+		short end = (short) (offsetCdata + total);
+		// Validate the headers first
+		short offset = offsetCdata;
+		while (offset < end) {
+			offset = this.nextBundleObject(buf, offset, end, false);
+		}
+		// Then write them all
+		offset = offsetCdata;
+		while (offset < end) {
+			offset = this.nextBundleObject(buf, offset, end, true);
+		}
+		this.id.commit();
+	}
+
+	/**
+	 * Maps an import type (P1) to the type of the key object in {@link JediIdentity}.
+	 * 
+	 * @param importType The import type.
+	 * @return The key object type or {@link JediIdentity#KEY_TYPE_UNSPECIFIED} if the type is unknown.
+	 */
+	private static short importTypeToKeyType(byte importType) {
+		switch (importType) {
+		case P1_SERIAL:
+			return JediIdentity.KEY_TYPE_SERIAL;
+		case P1_PUB_N:
+			return JediIdentity.KEY_TYPE_PUB_N;
+		case P1_PUB_E:
+		case P1_PUB_E_COMPAT:
+			return JediIdentity.KEY_TYPE_PUB_E;
+		case P1_SIG_ID:
+			return JediIdentity.KEY_TYPE_PUB_SIG;
+		case P1_PRIV_P:
+			return JediIdentity.KEY_TYPE_PRIV_P;
+		case P1_PRIV_Q:
+			return JediIdentity.KEY_TYPE_PRIV_Q;
+		case P1_PRIV_PQ:
+			return JediIdentity.KEY_TYPE_PRIV_PQ;
+		case P1_PRIV_DP1:
+			return JediIdentity.KEY_TYPE_PRIV_DP1;
+		case P1_PRIV_DQ1:
+			return JediIdentity.KEY_TYPE_PRIV_DQ1;
+		default:
+			return JediIdentity.KEY_TYPE_UNSPECIFIED;
+		}
+	}
+
+	/**
+	 * Parses one TLV of an import bundle and optionally writes it to the identity.
+	 * 
+	 * @param buf The buffer that contains the bundle.
+	 * @param offset Offset of the TLV.
+	 * @param end End of the bundle.
+	 * @param write Write the object if true. Only validate it otherwise.
+	 * @return Offset of the next TLV.
+	 */
+	private short nextBundleObject(byte[] buf, short offset, short end, boolean write) {
+		short keyType = JediIdentity.KEY_TYPE_UNSPECIFIED;
+		short len = -1;
+
+		if ((short) (end - offset) >= 2) {
+			keyType = importTypeToKeyType(buf[offset++]);
+
+			// BER-TLV length
+			short lenSize = 1;
+			switch (buf[offset]) {
+			case (byte) 0x81:
+				lenSize = 2;
+				if ((short) (end - offset) >= lenSize) {
+					len = (short) (buf[(short) (offset + 1)] & 0xff);
+				}
+				break;
+			case (byte) 0x82:
+				lenSize = 3;
+				if ((short) (end - offset) >= lenSize) {
+					len = Util.getShort(buf, (short) (offset + 1));
+				}
+				break;
+			default:
+				len = buf[offset];
+			}
+			offset += lenSize;
+		}
+
+		if (keyType == JediIdentity.KEY_TYPE_UNSPECIFIED || len < 0 || len > (short) (end - offset) ||
+				!JediIdentity.isValidKeyObjectLength(keyType, len)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			return end;
+		}
+		if (write) {
+			this.id.putKeyObjectDirect(buf, offset, len, keyType);
+		}
+		return (short) (offset + len);
+	}
+
+	/**
+	 * Handles the request of Export with {@link #P1_DS4ID}. Sends the whole signed DS4ID block, i.e.
+	 * serial number, N, E (padded to 256 bytes) and the signature, exactly as it appears in the response.
+	 * 
+	 * The block is split into pages of Ne bytes and P2 selects the page, so the whole block can be read
+	 * with one extended length APDU (P2 = 0 and Ne >= {@link JediIdentity#LEN_ID}) or with multiple short
+	 * APDUs (e.g. P2 = 0-3 and Ne = 256). The last page is truncated to the end of the block. Pages past the
+	 * end of the block are rejected with {@link ISO7816#SW_WRONG_P1P2 SW_WRONG_P1P2}.
+	 * 
+	 * With P2 = {@link #P2_RESP_CHAIN} the block is chained instead: the first Ne bytes are returned with
+	 * SW 61xx if they don't cover the whole block, and the rest can be read with ISO GET RESPONSE.
+	 * 
+	 * @param apdu The APDU context.
+	 */
+	private void processExportDs4Id(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		short page = (short) (buf[ISO7816.OFFSET_P2] & 0xff);
+
+		short pageSize = apdu.setOutgoing();
+		if (pageSize <= 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+		if (buf[ISO7816.OFFSET_P2] == P2_RESP_CHAIN) {
+			this.sendChainedResponse(apdu, RESP_CHAIN_DS4ID, (short) 0, pageSize);
+			return;
+		}
+		if (page > (short) ((short) (JediIdentity.LEN_ID - 1) / pageSize)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+			return;
+		}
+		short offset = (short) (page * pageSize);
+		this.sendDs4Id(apdu, offset, min(pageSize, (short) (JediIdentity.LEN_ID - offset)));
+	}
+
+	/**
+	 * Sends part of the signed DS4ID block.
+	 * 
+	 * @param apdu The APDU context. Must be in outgoing mode.
+	 * @param offset Offset within the block.
+	 * @param remaining Number of bytes to send.
+	 */
+	private void sendDs4Id(APDU apdu, short offset, short remaining) {
+		byte[] buf = apdu.getBuffer();
+		apdu.setOutgoingLength(this.countSent(remaining));
+
+		byte[] ds4Id = this.id.getDs4Id();
+		while (remaining > 0) {
+			short chunkUsed = min((short) buf.length, remaining);
+			Util.arrayCopyNonAtomic(ds4Id, offset, buf, (short) 0, chunkUsed);
+			apdu.sendBytes((short) 0, chunkUsed);
+			offset += chunkUsed;
+			remaining -= chunkUsed;
 		}
 	}
 
@@ -386,13 +1544,16 @@ public class ISCApplet extends Applet implements ExtendedLength {
 
 		byte exportType = buf[ISO7816.OFFSET_P1];
 		if (exportType == P1_SERIAL) {
-			Util.arrayCopyNonAtomic(this.id.getSerialNumber(), (short) 0, buf, (short) 0, JediIdentity.LEN_ID_SERIAL);
-			apdu.setOutgoingAndSend((short) 0, JediIdentity.LEN_ID_SERIAL);
+			Util.arrayCopyNonAtomic(this.id.getDs4Id(), JediIdentity.OFFSET_ID_SERIAL, buf, (short) 0, JediIdentity.LEN_ID_SERIAL);
+			apdu.setOutgoingAndSend((short) 0, this.countSent(JediIdentity.LEN_ID_SERIAL));
 			return;
 		} else if (exportType == P1_PUB_E_COMPAT) {
 			Util.arrayCopyNonAtomic(this.id.exportPublicKeyECompat(), (short) 0, buf, (short) 0, JediIdentity.LEN_ID_PUB_E_COMPAT);
 			this.id.finishExport();
-			apdu.setOutgoingAndSend((short) 0, JediIdentity.LEN_ID_PUB_E_COMPAT);
+			apdu.setOutgoingAndSend((short) 0, this.countSent(JediIdentity.LEN_ID_PUB_E_COMPAT));
+			return;
+		} else if (exportType == P1_DS4ID) {
+			this.processExportDs4Id(apdu);
 			return;
 		}
 		
@@ -404,8 +1565,9 @@ public class ISCApplet extends Applet implements ExtendedLength {
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 			return;
 		}
-		apdu.setOutgoingLength(remaining);
+		apdu.setOutgoingLength(this.countSent(remaining));
 		byte[] exportBuffer = null;
+		short exportOffset = 0;
 		switch (exportType) {
 		case P1_PUB_N:
 			exportBuffer = this.id.exportPublicKeyN();
@@ -414,7 +1576,8 @@ public class ISCApplet extends Applet implements ExtendedLength {
 			exportBuffer = this.id.exportPublicKeyE();
 			break;
 		case P1_SIG_ID:
-			exportBuffer = this.id.getIdSig();
+			exportBuffer = this.id.getDs4Id();
+			exportOffset = JediIdentity.OFFSET_ID_SIG;
 			break;
 		default:
 			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
@@ -429,7 +1592,7 @@ public class ISCApplet extends Applet implements ExtendedLength {
 				short chunkFree = min((short) buf.length, remaining);
 				while (chunkFree > 0) {
 					short copySize = min(chunkFree, remaining);
-					Util.arrayCopyNonAtomic(exportBuffer, (short) (JediIdentity.RSA2048_INT_SIZE-remaining), buf, chunkUsed, copySize);
+					Util.arrayCopyNonAtomic(exportBuffer, (short) (exportOffset + JediIdentity.RSA2048_INT_SIZE - remaining), buf, chunkUsed, copySize);
 					// Increment chunk size counter
 					chunkUsed += copySize;
 					// Update free space available for the chunk
@@ -446,30 +1609,80 @@ public class ISCApplet extends Applet implements ExtendedLength {
 	}
 
 	public void process(APDU apdu) throws ISOException {
+		if (this.selectingApplet()) {
+			return;
+		}
+		this.counters.tick();
+		try {
+			this.dispatch(apdu);
+		} catch (ISOException e) {
+			this.countStatus(e.getReason());
+			throw (e);
+		} catch (CardRuntimeException e) {
+			// Turned into SW_UNKNOWN by the JCRE.
+			this.countStatus(ISO7816.SW_UNKNOWN);
+			throw (e);
+		}
+	}
+
+	private void dispatch(APDU apdu) {
 		byte[] buf = apdu.getBuffer();
 		if (apdu.isISOInterindustryCLA()) {
-			if (this.selectingApplet()) {
-				return;
+			if (buf[ISO7816.OFFSET_INS] == INS_ISO_GET_RESPONSE) {
+				this.counters.increment(CNT_INS_ISO_GET_RESPONSE);
+				this.processIsoGetResponse(apdu);
 			} else {
+				this.counters.increment(CNT_INS_UNKNOWN);
 				ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
-				return;
 			}
+			return;
+		}
+		// Logical channel is handled by the JCRE and the session states are picked based on it.
+		byte cla = (byte) (buf[ISO7816.OFFSET_CLA] & ~CLA_CHANNEL_MASK);
+		byte ins = buf[ISO7816.OFFSET_INS];
+
+		// Any other command breaks a SET_CHALLENGE chain.
+		if (ins != INS_AUTH_SET_CHALLENGE && ins != INS_AUTH_SET_CHALLENGE_CHAINED) {
+			this.setSessionState(OFFSET_TS_CHAIN_OFFSET, (short) 0);
 		}
-		switch (buf[ISO7816.OFFSET_CLA]) {
+		// Any command other than ISO GET RESPONSE ends a response chain.
+		this.setSessionState(OFFSET_TS_RESP_CHAIN_TYPE, RESP_CHAIN_NONE);
+
+		this.countCommand(cla, ins);
+
+		switch (cla) {
 		case CLA_AUTH:
 			if (!this.id.isReady()) {
 				ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 				return;
 			}
-			switch (buf[ISO7816.OFFSET_INS]) {
+			switch (ins) {
 			case INS_AUTH_RESET:
 				this.processAuthReset(apdu);
 				break;
 			case INS_AUTH_SET_CHALLENGE:
-				this.processAuthSetChallenge(apdu);
+				this.processAuthSetChallenge(apdu, false);
+				break;
+			case INS_AUTH_SET_CHALLENGE_CHAINED:
+				this.processAuthSetChallenge(apdu, true);
 				break;
 			case INS_AUTH_GET_RESPONSE:
-				this.processAuthGetResponse(apdu);
+				this.processAuthGetResponse(apdu, LEN_DS4RESP);
+				break;
+			case INS_AUTH_GET_SIGNATURE:
+				this.processAuthGetResponse(apdu, LEN_DS4RESP_SIG);
+				break;
+			case INS_AUTH_GET_FINGERPRINT:
+				this.processAuthGetFingerprint(apdu);
+				break;
+			case INS_AUTH_CHALLENGE_RESPONSE:
+				this.processAuthChallengeResponse(apdu);
+				break;
+			case INS_AUTH_GET_CHALLENGE_STATUS:
+				this.processAuthGetChallengeStatus(apdu);
+				break;
+			case INS_AUTH_SET_CHALLENGE_HASH:
+				this.processAuthSetChallengeHash(apdu);
 				break;
 			default:
 				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
@@ -480,22 +1693,46 @@ public class ISCApplet extends Applet implements ExtendedLength {
 				ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 				break;
 			}
-			switch (buf[ISO7816.OFFSET_INS]) {
+			switch (ins) {
 			case INS_CONFIG_GET_VERSION:
 				this.processGetVersion(apdu);
 				break;
 			case INS_CONFIG_GET_STATUS:
 				this.processGetStatus(apdu);
 				break;
+			case INS_CONFIG_GET_CAPABILITIES:
+				this.processGetCapabilities(apdu);
+				break;
+			case INS_CONFIG_BENCHMARK:
+				this.processBenchmark(apdu);
+				break;
+			case INS_CONFIG_GET_COUNTERS:
+				this.processGetCounters(apdu);
+				break;
 			case INS_CONFIG_RESET:
 				this.id.reset();
 				break;
 			case INS_CONFIG_IMPORT:
 				this.processImport(apdu);
 				break;
+			case INS_CONFIG_IMPORT_AT:
+				this.processImportAt(apdu);
+				break;
+			case INS_CONFIG_IMPORT_STATUS:
+				this.processImportStatus(apdu);
+				break;
 			case INS_CONFIG_EXPORT:
 				this.processExport(apdu);
 				break;
+			case INS_CONFIG_COMMIT:
+				this.id.commit();
+				break;
+			case INS_CONFIG_DISCARD:
+				this.id.discard();
+				break;
+			case INS_CONFIG_BEGIN_STAGING:
+				this.id.beginStaging();
+				break;
 			case INS_CONFIG_GEN_KEYS:
 				this.id.genKeyPair();
 				break;
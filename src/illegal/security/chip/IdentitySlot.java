@@ -0,0 +1,113 @@
+package illegal.security.chip;
+
+import javacard.framework.Util;
+import javacard.security.KeyBuilder;
+import javacard.security.MessageDigest;
+import javacard.security.RSAPrivateCrtKey;
+import javacard.security.RSAPublicKey;
+
+/**
+ * One complete copy of the identity, i.e. the signed DS4ID block, its fingerprint and the key pair.
+ * {@link JediIdentity} keeps two of them so a new identity can be staged without touching the active one.
+ */
+public class IdentitySlot {
+	/**
+	 * Signed public identity block (DS4ID). Contains the serial number of the security chip,
+	 * the public key and the signature of the rest of the block, laid out exactly as they
+	 * appear in the response so they can be sent as-is.
+	 */
+	public final byte[] ds4Id;
+	/**
+	 * SHA-256 fingerprint of the signed DS4ID block.
+	 */
+	public final byte[] ds4IdFingerprint;
+	/**
+	 * Controller-unique public key.
+	 */
+	public final RSAPublicKey cukPub;
+	/**
+	 * Controller-unique private key.
+	 */
+	public final RSAPrivateCrtKey cukPriv;
+
+	public IdentitySlot() {
+		this.ds4Id = new byte[JediIdentity.LEN_ID];
+		this.ds4IdFingerprint = new byte[JediIdentity.LEN_ID_FINGERPRINT];
+		this.cukPub = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_2048, false);
+		this.cukPriv = (RSAPrivateCrtKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+	}
+
+	/**
+	 * Clears the key pair and fills the DS4ID block with 0x00. The fingerprint is left alone.
+	 */
+	public void clear() {
+		this.cukPub.clearKey();
+		this.cukPriv.clearKey();
+		Util.arrayFillNonAtomic(this.ds4Id, (short) 0, JediIdentity.LEN_ID, (byte) 0);
+	}
+
+	/**
+	 * Makes this slot an exact copy of another one.
+	 * @param other The slot to copy from.
+	 * @param scratch Transient buffer of at least {@link JediIdentity#RSA2048_INT_SIZE} bytes for moving
+	 * the key components around. It is left dirty, so the caller must wipe it.
+	 */
+	public void copyFrom(IdentitySlot other, byte[] scratch) {
+		short len;
+
+		this.clear();
+		if (other.cukPriv.isInitialized()) {
+			len = other.cukPriv.getP(scratch, (short) 0);
+			this.cukPriv.setP(scratch, (short) 0, len);
+			len = other.cukPriv.getQ(scratch, (short) 0);
+			this.cukPriv.setQ(scratch, (short) 0, len);
+			len = other.cukPriv.getPQ(scratch, (short) 0);
+			this.cukPriv.setPQ(scratch, (short) 0, len);
+			len = other.cukPriv.getDP1(scratch, (short) 0);
+			this.cukPriv.setDP1(scratch, (short) 0, len);
+			len = other.cukPriv.getDQ1(scratch, (short) 0);
+			this.cukPriv.setDQ1(scratch, (short) 0, len);
+		}
+		if (other.cukPub.isInitialized()) {
+			len = other.cukPub.getModulus(scratch, (short) 0);
+			this.cukPub.setModulus(scratch, (short) 0, len);
+			len = other.cukPub.getExponent(scratch, (short) 0);
+			this.cukPub.setExponent(scratch, (short) 0, len);
+		}
+		Util.arrayCopyNonAtomic(other.ds4Id, (short) 0, this.ds4Id, (short) 0, JediIdentity.LEN_ID);
+		Util.arrayCopyNonAtomic(other.ds4IdFingerprint, (short) 0, this.ds4IdFingerprint, (short) 0, JediIdentity.LEN_ID_FINGERPRINT);
+	}
+
+	/**
+	 * Copies the exponent from the public key object into the DS4ID block, left-padded to
+	 * {@link JediIdentity#LEN_ID_PUB_E}.
+	 */
+	public void copyIdPublicKeyE() {
+		short len = this.cukPub.getExponent(this.ds4Id, JediIdentity.OFFSET_ID_PUB_E);
+		short padding = (short) (JediIdentity.LEN_ID_PUB_E - len);
+		if (padding > 0) {
+			// Overlapping copy within the same array is fine here.
+			Util.arrayCopyNonAtomic(this.ds4Id, JediIdentity.OFFSET_ID_PUB_E, this.ds4Id, (short) (JediIdentity.OFFSET_ID_PUB_E + padding), len);
+			Util.arrayFillNonAtomic(this.ds4Id, JediIdentity.OFFSET_ID_PUB_E, padding, (byte) 0);
+		}
+	}
+
+	/**
+	 * Recalculates the fingerprint of the DS4ID block.
+	 * @param sha256 SHA-256 engine to use.
+	 */
+	public void updateFingerprint(MessageDigest sha256) {
+		sha256.doFinal(this.ds4Id, (short) 0, JediIdentity.LEN_ID, this.ds4IdFingerprint, (short) 0);
+	}
+
+	/**
+	 * Returns the readiness of the slot.
+	 *
+	 * Note that this only checks if the private and public keys are initialized.
+	 * Unsigned key blocks will still pass the test.
+	 * @return true if ready.
+	 */
+	public boolean isReady() {
+		return this.cukPriv.isInitialized() && this.cukPub.isInitialized();
+	}
+}
@@ -5,8 +5,8 @@ import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
-import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
 import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPublicKey;
 
@@ -17,6 +17,15 @@ public class JediIdentity {
 
 	private static final byte LEN_TMP = (byte) 2;
 
+	private static final byte SLOT_STATE_ACTIVE_MASK = (byte) 0x01;
+	private static final byte SLOT_STATE_STAGING = (byte) 0x02;
+	private static final byte SLOT_STATE_STAGING_REQUESTED = (byte) 0x04;
+
+	// Granularity of the received-range bitmaps of offset-addressed import. Every key object fits in 16 blocks.
+	public static final short IMPORT_BLOCK_SIZE = (short) 0x10;
+	// One bitmap for the serial number (index 0) and for each KEY_TYPE_PUB_* and KEY_TYPE_PRIV_* (index = type).
+	private static final short LEN_IMPORT_MAPS = (short) 9;
+
 	public static final short RSA2048_INT_SIZE = (short) 0x100;
 	public static final short RSA2048_E_SIZE_COMPAT = (short) 0x4;
 	public static final short RSA2048_PQ_SIZE = (short) 0x80;
@@ -27,18 +36,21 @@ public class JediIdentity {
 	public static final short LEN_ID_PUB_E_COMPAT = RSA2048_E_SIZE_COMPAT;
 	public static final short LEN_ID_SIG = RSA2048_INT_SIZE;
 
-//	private static final short OFFSET_ID_SERIAL = (short) 0x0;
-//	private static final short OFFSET_ID_PUB_N = OFFSET_ID_SERIAL + LEN_ID_SERIAL;
-//	private static final short OFFSET_ID_PUB_E = OFFSET_ID_PUB_N + LEN_ID_PUB_N;
-//	private static final short OFFSET_ID_SIG = OFFSET_ID_PUB_E + LEN_ID_PUB_E;
-//	
+	public static final short OFFSET_ID_SERIAL = (short) 0x0;
+	public static final short OFFSET_ID_PUB_N = OFFSET_ID_SERIAL + LEN_ID_SERIAL;
+	public static final short OFFSET_ID_PUB_E = OFFSET_ID_PUB_N + LEN_ID_PUB_N;
+	public static final short OFFSET_ID_SIG = OFFSET_ID_PUB_E + LEN_ID_PUB_E;
+
+	public static final short LEN_ID = OFFSET_ID_SIG + LEN_ID_SIG;
+
+	public static final short LEN_ID_FINGERPRINT = MessageDigest.LENGTH_SHA_256;
+
 //	private static final short OFFSET_KEY_P = (short) 0x0;
 //	private static final short OFFSET_KEY_Q = OFFSET_KEY_P + RSA2048_PQ_SIZE;
 //	private static final short OFFSET_KEY_PQ = OFFSET_KEY_Q + RSA2048_PQ_SIZE;
 //	private static final short OFFSET_KEY_DP1 = OFFSET_KEY_PQ + RSA2048_PQ_SIZE;
 //	private static final short OFFSET_KEY_DQ1 = OFFSET_KEY_DP1 + RSA2048_PQ_SIZE;
 //
-//	private static final short LEN_ID = OFFSET_ID_SIG + LEN_ID_SIG;
 //	private static final short LEN_KEY = OFFSET_KEY_DQ1 + RSA2048_PQ_SIZE;
 	
 	public static final short KEY_TYPE_UNSPECIFIED = (short) 0;
@@ -53,54 +65,359 @@ public class JediIdentity {
 	public static final short KEY_TYPE_EXPORT_PUB_N = (short) 9;
 	public static final short KEY_TYPE_EXPORT_PUB_E = (short) 10;
 	public static final short KEY_TYPE_EXPORT_PUB_E_COMPAT = (short) 12;
+	public static final short KEY_TYPE_SERIAL = (short) 13;
 
 	/**
-	 * Serial number of the security chip.
+	 * Identity slots. One of them is active and the other one is used for staging changes.
+	 */
+	private final IdentitySlot[] slots;
+	/**
+	 * Bit 0 is the index of the active slot. Bit 1 is set when the other slot holds staged changes.
+	 * Bit 2 is set when writes should go to the staging slot (see {@link #beginStaging()}).
+	 * They live in the same byte so that committing the staged slot is a single (atomic) persistent write.
 	 */
-	private final byte[] serialNumber;
+	private byte slotState;
 	/**
-	 * Controller-unique public key.
+	 * Received-range bitmaps of offset-addressed import. Bit n is set when block n (of
+	 * {@link #IMPORT_BLOCK_SIZE} bytes) of the object has been written to the staging slot.
+	 * Persistent so that the import can be resumed after a deselect or a card tear.
 	 */
-	private final RSAPublicKey cukPub;
+	private final short[] importMaps;
 	/**
-	 * Controller-unique private key.
+	 * Persistent buffer for private key components received by offset-addressed import. The public
+	 * objects are received straight into the DS4ID block of the staging slot. Each component is wiped as
+	 * soon as it's complete and written to the key object, and the whole buffer is wiped on commit,
+	 * discard and nuke, so an abandoned import doesn't leave key material behind once it's discarded.
 	 */
-	private final RSAPrivateCrtKey cukPriv;
+	private final byte[] importPrivBuffer;
+	private final MessageDigest sha256;
 	/**
-	 * Signature of the public identity block.
+	 * Bumped every time the active private key changes so users of the key can tell whether the engines
+	 * initialized with it are stale.
 	 */
-	private final byte[] idSig;
+	private short keyEpoch;
 	/**
 	 * Transient state array.
 	 */
 	private final short[] tmp;
 	/**
-	 * Transient buffer for receiving key blocks or other large objects.
+	 * Transient buffer for receiving key blocks or other large objects. Leased from the arena shared with
+	 * the applet so it must be leased with {@link #leaseScratchPad()} before use.
 	 */
 	private final byte[] keyScratchPad;
-
-	public JediIdentity() {
-		this.serialNumber = new byte[LEN_ID_SERIAL];
-		this.idSig = new byte[RSA2048_INT_SIZE];
+	private final TransientArena arena;
+
+	public JediIdentity(TransientArena arena) {
+		this.slots = new IdentitySlot[2];
+		this.slots[0] = new IdentitySlot();
+		this.slots[1] = new IdentitySlot();
+		this.importMaps = new short[LEN_IMPORT_MAPS];
+		this.importPrivBuffer = new byte[(short) ((KEY_TYPE_PRIV_DQ1 - KEY_TYPE_PRIV_P + 1) * RSA2048_PQ_SIZE)];
+		this.sha256 = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
 		this.tmp = JCSystem.makeTransientShortArray(LEN_TMP, JCSystem.CLEAR_ON_DESELECT);
-		this.keyScratchPad = JCSystem.makeTransientByteArray(RSA2048_INT_SIZE, JCSystem.CLEAR_ON_DESELECT);
-		this.cukPub = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_2048, false);
-		this.cukPriv = (RSAPrivateCrtKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+		this.arena = arena;
+		this.keyScratchPad = arena.getBuffer();
 		this.reset();
+		this.getActiveSlot().updateFingerprint(this.sha256);
 	}
 
 	/**
 	 * Resets the object to uninitialized state.
 	 * 
 	 * In this state, all key blocks are reset to uninitialized state and other data are filled with 0x00.
-	 * All transient states are also cleared.
+	 * All transient states and staged changes are also cleared.
 	 */
 	public void nuke() {
 		this.reset();
-		this.cukPub.clearKey();
-		this.cukPriv.clearKey();
-		Util.arrayFillNonAtomic(this.serialNumber, (short) 0, (short) this.serialNumber.length, (byte) 0);
-		Util.arrayFillNonAtomic(this.idSig, (short) 0, (short) this.idSig.length, (byte) 0);
+		this.clearImportMaps();
+		this.slotState = 0;
+		this.slots[0].clear();
+		this.slots[1].clear();
+		this.keyEpoch++;
+		this.getActiveSlot().updateFingerprint(this.sha256);
+	}
+
+	private IdentitySlot getActiveSlot() {
+		return this.slots[this.slotState & SLOT_STATE_ACTIVE_MASK];
+	}
+
+	/**
+	 * Returns the staging slot for writing. If nothing has been staged since the last commit, the
+	 * active slot is copied into the staging slot first so objects can be updated individually.
+	 * 
+	 * The key components are copied through the scratch pad so they never touch a persistent buffer.
+	 * The copy needs the whole scratch pad, so it is rejected with
+	 * {@link ISO7816#SW_CONDITIONS_NOT_SATISFIED ISO7816.SW_CONDITIONS_NOT_SATISFIED} while a paged
+	 * import is in progress.
+	 */
+	private IdentitySlot openStagingSlot() {
+		byte state = this.slotState;
+		IdentitySlot staging = this.slots[(state & SLOT_STATE_ACTIVE_MASK) ^ 1];
+		if ((state & SLOT_STATE_STAGING) == 0) {
+			if (this.getTmpKeyOffset() != 0) {
+				ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				return staging;
+			}
+			// If this gets interrupted, the copy is simply redone next time.
+			this.arena.acquire(TransientArena.OWNER_IDENTITY);
+			this.arena.markDirty(RSA2048_INT_SIZE);
+			staging.copyFrom(this.slots[state & SLOT_STATE_ACTIVE_MASK], this.keyScratchPad);
+			// Wipes the key components from the scratch pad.
+			this.arena.release(TransientArena.OWNER_IDENTITY);
+			this.slotState = (byte) (state | SLOT_STATE_STAGING | SLOT_STATE_STAGING_REQUESTED);
+		}
+		return staging;
+	}
+
+	/**
+	 * Returns the slot that import and key generation write to, i.e. the staging slot after
+	 * {@link #beginStaging()} and the active slot otherwise.
+	 */
+	private IdentitySlot getWriteSlot() {
+		if ((this.slotState & (SLOT_STATE_STAGING | SLOT_STATE_STAGING_REQUESTED)) == 0) {
+			return this.getActiveSlot();
+		}
+		return this.openStagingSlot();
+	}
+
+	/**
+	 * Finishes a write to a slot returned by {@link #getWriteSlot()}. Writes to the active slot take
+	 * effect right away, so its fingerprint and the key epoch are updated.
+	 * @param slot The slot written to.
+	 */
+	private void finishWrite(IdentitySlot slot) {
+		if (slot == this.getActiveSlot()) {
+			slot.updateFingerprint(this.sha256);
+			this.keyEpoch++;
+		}
+	}
+
+	/**
+	 * Sends all following imports and key generations to the staging slot until {@link #commit()} or
+	 * {@link #discard()}. Without it, paged import and key generation write to the active identity right
+	 * away like they always did. Offset-addressed import and bundles always go through staging.
+	 * 
+	 * A paged import to the active identity that is still in progress is abandoned.
+	 */
+	public void beginStaging() {
+		if ((this.slotState & (SLOT_STATE_STAGING | SLOT_STATE_STAGING_REQUESTED)) == 0) {
+			this.reset();
+			this.slotState = (byte) (this.slotState | SLOT_STATE_STAGING_REQUESTED);
+		}
+	}
+
+	/**
+	 * Returns whether there are staged changes waiting for {@link #commit()}.
+	 * @return true if there are staged changes.
+	 */
+	public boolean hasStagedChanges() {
+		return (this.slotState & SLOT_STATE_STAGING) != 0;
+	}
+
+	/**
+	 * Makes the staged identity the active one. The staged slot is finalized first and then activated
+	 * with a single persistent write, so an interrupted commit either leaves the old identity active
+	 * or fully activates the new one.
+	 * 
+	 * Does nothing (other than ending {@link #beginStaging()}) if there are no staged changes so a commit
+	 * can safely be retried. If an object is still being imported, this will be rejected with
+	 * {@link ISO7816#SW_CONDITIONS_NOT_SATISFIED ISO7816.SW_CONDITIONS_NOT_SATISFIED}.
+	 */
+	public void commit() {
+		byte state = this.slotState;
+		if ((state & SLOT_STATE_STAGING) == 0) {
+			if ((state & SLOT_STATE_STAGING_REQUESTED) != 0) {
+				this.slotState = (byte) (state & SLOT_STATE_ACTIVE_MASK);
+			}
+			return;
+		}
+		if (this.getTmpKeyOffset() != 0 || this.hasPartialImport()) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			return;
+		}
+		this.slots[(state & SLOT_STATE_ACTIVE_MASK) ^ 1].updateFingerprint(this.sha256);
+		// Flip the active slot and close staging in one go.
+		this.slotState = (byte) ((state & SLOT_STATE_ACTIVE_MASK) ^ 1);
+		this.keyEpoch++;
+		this.clearImportMaps();
+	}
+
+	/**
+	 * Throws away all staged changes, including the object being imported (if any). The active
+	 * identity is not affected.
+	 */
+	public void discard() {
+		this.reset();
+		this.slotState = (byte) (this.slotState & SLOT_STATE_ACTIVE_MASK);
+		this.clearImportMaps();
+	}
+
+	private void clearImportMaps() {
+		Util.arrayFillNonAtomic(this.importPrivBuffer, (short) 0, (short) this.importPrivBuffer.length, (byte) 0);
+		for (short i = 0; i < LEN_IMPORT_MAPS; i++) {
+			this.importMaps[i] = 0;
+		}
+	}
+
+	/**
+	 * Returns the index of the received-range bitmap of a key object, or -1 if the object can't be
+	 * imported by offset.
+	 */
+	private static short getImportMapIndex(short keyType) {
+		if (keyType == KEY_TYPE_SERIAL) {
+			return 0;
+		} else if (keyType >= KEY_TYPE_PUB_N && keyType <= KEY_TYPE_PRIV_DQ1) {
+			return keyType;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the bitmap with the bits of all blocks of a key object set.
+	 */
+	private static short getImportFullMap(short keyType) {
+		short blocks = (short) (getKeyObjectSize(keyType) / IMPORT_BLOCK_SIZE);
+		if (blocks >= 16) {
+			return (short) 0xffff;
+		}
+		return (short) ((short) (1 << blocks) - 1);
+	}
+
+	private boolean hasPartialImport() {
+		for (short i = 0; i < LEN_IMPORT_MAPS; i++) {
+			short map = this.importMaps[i];
+			if (map != 0 && map != getImportFullMap(i == 0 ? KEY_TYPE_SERIAL : i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes part of a key object at the given offset of the object to the staging slot. Unlike paged
+	 * import, parts can be written in any order, retransmitted and resumed after a deselect or a card tear.
+	 * Call {@link #markKeyObjectReceived(short, short, short)} once the whole range has been written.
+	 * Parts of an object that is already complete are ignored, so retransmitting a part after its status
+	 * word got lost is harmless. Discard the staged changes to import the object again.
+	 * 
+	 * Writes past the end of the object are rejected with {@link ISO7816#SW_WRONG_LENGTH ISO7816.SW_WRONG_LENGTH}.
+	 * @param buffer The buffer that contains the data.
+	 * @param offset Offset where the data is located.
+	 * @param len Number of bytes to write.
+	 * @param keyType Type of the key object (KEY_TYPE_*).
+	 * @param objOffset Offset within the key object.
+	 */
+	public void putKeyObjectAt(final byte[] buffer, short offset, short len, short keyType, short objOffset) {
+		short index = getImportMapIndex(keyType);
+		if (index < 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+			return;
+		}
+		if (objOffset < 0 || len < 0 || (short) (objOffset + len) > getKeyObjectSize(keyType)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+		if (this.importMaps[index] == getImportFullMap(keyType)) {
+			// Already written to the key object. The private buffer may have been wiped.
+			return;
+		}
+		IdentitySlot staging = this.openStagingSlot();
+		byte[] target;
+		short base;
+		switch (keyType) {
+		case KEY_TYPE_SERIAL:
+			target = staging.ds4Id;
+			base = OFFSET_ID_SERIAL;
+			break;
+		case KEY_TYPE_PUB_N:
+			target = staging.ds4Id;
+			base = OFFSET_ID_PUB_N;
+			break;
+		case KEY_TYPE_PUB_E:
+			target = staging.ds4Id;
+			base = OFFSET_ID_PUB_E;
+			break;
+		case KEY_TYPE_PUB_SIG:
+			target = staging.ds4Id;
+			base = OFFSET_ID_SIG;
+			break;
+		default:
+			target = this.importPrivBuffer;
+			base = (short) ((keyType - KEY_TYPE_PRIV_P) * RSA2048_PQ_SIZE);
+		}
+		Util.arrayCopyNonAtomic(buffer, offset, target, (short) (base + objOffset), len);
+	}
+
+	/**
+	 * Marks a range written by {@link #putKeyObjectAt(byte[], short, short, short, short)} as received. Only
+	 * blocks fully covered by the range are marked. Once all blocks of the object are received, the object
+	 * is written to the key object of the staging slot. Does nothing if the object is already complete.
+	 * @param keyType Type of the key object (KEY_TYPE_*).
+	 * @param objOffset Offset of the range within the key object.
+	 * @param len Length of the range.
+	 */
+	public void markKeyObjectReceived(short keyType, short objOffset, short len) {
+		short index = getImportMapIndex(keyType);
+		short first = (short) ((short) (objOffset + IMPORT_BLOCK_SIZE - 1) / IMPORT_BLOCK_SIZE);
+		short end = (short) ((short) (objOffset + len) / IMPORT_BLOCK_SIZE);
+		short full = getImportFullMap(keyType);
+		short map = this.importMaps[index];
+		if (map == full) {
+			return;
+		}
+		for (short i = first; i < end; i++) {
+			map |= (short) (1 << i);
+		}
+
+		if (map != full) {
+			this.importMaps[index] = map;
+			return;
+		}
+		// Complete. The key object and the map are updated in one transaction, so a tear either leaves
+		// the last block missing (and the data in the buffer) or the object complete.
+		IdentitySlot staging = this.openStagingSlot();
+		short privOffset = (short) ((keyType - KEY_TYPE_PRIV_P) * RSA2048_PQ_SIZE);
+		JCSystem.beginTransaction();
+		switch (keyType) {
+		case KEY_TYPE_PUB_N:
+			staging.cukPub.setModulus(staging.ds4Id, OFFSET_ID_PUB_N, LEN_ID_PUB_N);
+			break;
+		case KEY_TYPE_PUB_E:
+			staging.cukPub.setExponent(staging.ds4Id, OFFSET_ID_PUB_E, LEN_ID_PUB_E);
+			staging.copyIdPublicKeyE();
+			break;
+		case KEY_TYPE_PRIV_P:
+			staging.cukPriv.setP(this.importPrivBuffer, privOffset, RSA2048_PQ_SIZE);
+			break;
+		case KEY_TYPE_PRIV_Q:
+			staging.cukPriv.setQ(this.importPrivBuffer, privOffset, RSA2048_PQ_SIZE);
+			break;
+		case KEY_TYPE_PRIV_PQ:
+			staging.cukPriv.setPQ(this.importPrivBuffer, privOffset, RSA2048_PQ_SIZE);
+			break;
+		case KEY_TYPE_PRIV_DP1:
+			staging.cukPriv.setDP1(this.importPrivBuffer, privOffset, RSA2048_PQ_SIZE);
+			break;
+		case KEY_TYPE_PRIV_DQ1:
+			staging.cukPriv.setDQ1(this.importPrivBuffer, privOffset, RSA2048_PQ_SIZE);
+			break;
+		}
+		this.importMaps[index] = map;
+		JCSystem.commitTransaction();
+		// Wiped only after the object is marked complete, so a retransmitted block can't bring a half
+		// wiped component back. If this gets interrupted, the rest is wiped on commit or discard.
+		if (keyType >= KEY_TYPE_PRIV_P && keyType <= KEY_TYPE_PRIV_DQ1) {
+			Util.arrayFillNonAtomic(this.importPrivBuffer, privOffset, RSA2048_PQ_SIZE, (byte) 0);
+		}
+	}
+
+	/**
+	 * Returns the blocks of a key object that are still missing for offset-addressed import.
+	 * @param keyType Type of the key object (KEY_TYPE_*).
+	 * @return Bitmap of missing blocks. Bit n represents block n (of {@link #IMPORT_BLOCK_SIZE} bytes).
+	 */
+	public short getKeyObjectMissing(short keyType) {
+		return (short) (getImportFullMap(keyType) & ~this.importMaps[getImportMapIndex(keyType)]);
 	}
 
 	/**
@@ -109,7 +426,7 @@ public class JediIdentity {
 	public void reset() {
 		this.setTmpKeyOffset((short) 0);
 		this.setTmpKeyTypeFlag(KEY_TYPE_UNSPECIFIED);
-		this.clearScratchPad();
+		this.arena.release(TransientArena.OWNER_IDENTITY);
 	}
 
 	private void setTmpKeyOffset(short off) {
@@ -132,33 +449,73 @@ public class JediIdentity {
 		return this.tmp[OFFSET_FLAG_TMP_KEY_TYPE];
 	}
 
-	private void clearScratchPad() {
-		Util.arrayFillNonAtomic(this.keyScratchPad, (short) 0, (short) this.keyScratchPad.length, (byte) 0);
+	/**
+	 * Leases the scratch pad from the arena. If the arena was taken over by the applet in the middle of
+	 * an import, the partially imported object is lost. In this case the import is reset and rejected with
+	 * {@link ISO7816#SW_CONDITIONS_NOT_SATISFIED ISO7816.SW_CONDITIONS_NOT_SATISFIED}.
+	 */
+	private void leaseScratchPad() {
+		if (this.arena.acquire(TransientArena.OWNER_IDENTITY) != TransientArena.OWNER_IDENTITY && this.getTmpKeyOffset() != 0) {
+			this.reset();
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
 	}
 
-	private short putKeyObject(final byte[] buffer, short offset, short len, short keyType) {
-		short actual;
-
-		// Determine bounds based on object type
-		short bounds = 0;
+	/**
+	 * Returns the size of a key object.
+	 * @param keyType Type of the key object (KEY_TYPE_*).
+	 * @return Size of the key object or 0 if the type is not an importable object.
+	 */
+	public static short getKeyObjectSize(short keyType) {
 		switch (keyType) {
+		case KEY_TYPE_SERIAL:
+			return LEN_ID_SERIAL;
 		case KEY_TYPE_PUB_N:
 		case KEY_TYPE_PUB_E:
 		case KEY_TYPE_PUB_SIG:
-			bounds = JediIdentity.RSA2048_INT_SIZE;
-			break;
+			return JediIdentity.RSA2048_INT_SIZE;
 		case KEY_TYPE_PRIV_P:
 		case KEY_TYPE_PRIV_Q:
 		case KEY_TYPE_PRIV_PQ:
 		case KEY_TYPE_PRIV_DP1:
 		case KEY_TYPE_PRIV_DQ1:
-			bounds = JediIdentity.RSA2048_PQ_SIZE;
-			break;
+			return JediIdentity.RSA2048_PQ_SIZE;
 		default:
+			return (short) 0;
+		}
+	}
+
+	/**
+	 * Checks whether a complete key object can be written with {@link #putKeyObjectDirect(byte[], short, short, short)}.
+	 * All objects must have their exact size except the public exponent, which can be anything from 1 byte
+	 * up to {@link #LEN_ID_PUB_E}.
+	 * @param keyType Type of the key object (KEY_TYPE_*).
+	 * @param len Length of the key object.
+	 * @return true if acceptable.
+	 */
+	public static boolean isValidKeyObjectLength(short keyType, short len) {
+		short size = getKeyObjectSize(keyType);
+		if (keyType == KEY_TYPE_PUB_E) {
+			return len > 0 && len <= size;
+		}
+		return size != 0 && len == size;
+	}
+
+	private short putKeyObject(final byte[] buffer, short offset, short len, short keyType) {
+		short actual;
+
+		// Determine bounds based on object type
+		short bounds = getKeyObjectSize(keyType);
+		if (bounds == 0 || keyType == KEY_TYPE_SERIAL) {
 			ISOException.throwIt((short) 0x6f00);
 			return (short) 0;
 		}
 
+		if (this.getTmpKeyOffset() == 0) {
+			// Open the staging slot (if requested) while the scratch pad is still free for the copy.
+			this.getWriteSlot();
+		}
+		this.leaseScratchPad();
 		if (this.getTmpKeyTypeFlag() == KEY_TYPE_UNSPECIFIED) {
 			this.setTmpKeyTypeFlag(keyType);
 		} else if (this.getTmpKeyTypeFlag() != keyType) {
@@ -175,52 +532,29 @@ public class JediIdentity {
 		} else {
 			actual = len;
 		}
+		this.arena.markDirty((short) (this.getTmpKeyOffset() + actual));
 		Util.arrayCopyNonAtomic(buffer, offset, this.keyScratchPad, this.getTmpKeyOffset(), actual);
 		this.incTmpKeyOffset(actual);
 		if (this.getTmpKeyOffset() == bounds) {
-			switch (keyType) {
-			case KEY_TYPE_PUB_N:
-				this.cukPub.setModulus(this.keyScratchPad, (short) 0, JediIdentity.RSA2048_INT_SIZE);
-				break;
-			case KEY_TYPE_PUB_E:
-				this.cukPub.setExponent(this.keyScratchPad, (short) 0, JediIdentity.RSA2048_INT_SIZE);
-				break;
-			case KEY_TYPE_PUB_SIG:
-				Util.arrayCopyNonAtomic(this.keyScratchPad, (short) 0, this.idSig, (short) 0, (short) this.idSig.length);
-				break;
-			case KEY_TYPE_PRIV_P:
-				this.cukPriv.setP(this.keyScratchPad, (short) 0, JediIdentity.RSA2048_PQ_SIZE);
-				break;
-			case KEY_TYPE_PRIV_Q:
-				this.cukPriv.setQ(this.keyScratchPad, (short) 0, JediIdentity.RSA2048_PQ_SIZE);
-				break;
-			case KEY_TYPE_PRIV_PQ:
-				this.cukPriv.setPQ(this.keyScratchPad, (short) 0, JediIdentity.RSA2048_PQ_SIZE);
-				break;
-			case KEY_TYPE_PRIV_DP1:
-				this.cukPriv.setDP1(this.keyScratchPad, (short) 0, JediIdentity.RSA2048_PQ_SIZE);
-				break;
-			case KEY_TYPE_PRIV_DQ1:
-				this.cukPriv.setDQ1(this.keyScratchPad, (short) 0, JediIdentity.RSA2048_PQ_SIZE);
-				break;
-			default:
-				ISOException.throwIt((short) 0x6f00);
-				return (short) 0;
-			}
+			// Write the complete object to the slot.
+			this.putKeyObjectDirect(this.keyScratchPad, (short) 0, bounds, keyType);
 			this.setTmpKeyTypeFlag(KEY_TYPE_UNSPECIFIED);
 			this.setTmpKeyOffset((short) 0);
+			// Done with the scratch pad. This also wipes the key material from it.
+			this.arena.release(TransientArena.OWNER_IDENTITY);
 		}
 		return actual;
 	}
 
 	/**
-	 * Generates controller-unique RSA keypair.
+	 * Generates controller-unique RSA keypair into the slot returned by {@link #getWriteSlot()}.
 	 */
 	public void genKeyPair() throws ISOException {
+		IdentitySlot staging = this.getWriteSlot();
 		KeyPair kp = null;
 		// Check for hw capabilities
 		try {
-			kp = new KeyPair(this.cukPub, this.cukPriv);
+			kp = new KeyPair(staging.cukPub, staging.cukPriv);
 		} catch (CryptoException e) {
 			// RSA 2048 is not supported
 			if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
@@ -232,6 +566,62 @@ public class JediIdentity {
 
 		// Actually generate the key
 		kp.genKeyPair();
+		staging.cukPub.getModulus(staging.ds4Id, OFFSET_ID_PUB_N);
+		staging.copyIdPublicKeyE();
+		this.finishWrite(staging);
+	}
+
+	/**
+	 * Writes a complete key object straight from the buffer into the key objects (or the DS4ID block)
+	 * of the slot returned by {@link #getWriteSlot()} without going through the scratch pad. Used for bulk
+	 * import where the whole object is already available in the APDU buffer.
+	 * 
+	 * The length must pass {@link #isValidKeyObjectLength(short, short)} or it will be rejected with
+	 * {@link ISO7816#SW_WRONG_LENGTH ISO7816.SW_WRONG_LENGTH}. After {@link #beginStaging()}, the object
+	 * only takes effect after {@link #commit()}.
+	 * @param buffer The buffer that contains the key object.
+	 * @param offset Offset where the key object is located.
+	 * @param len Length of the key object.
+	 * @param keyType Type of the key object (KEY_TYPE_*).
+	 */
+	public void putKeyObjectDirect(final byte[] buffer, short offset, short len, short keyType) {
+		if (!isValidKeyObjectLength(keyType, len)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+		IdentitySlot staging = this.getWriteSlot();
+		switch (keyType) {
+		case KEY_TYPE_SERIAL:
+			Util.arrayCopyNonAtomic(buffer, offset, staging.ds4Id, OFFSET_ID_SERIAL, len);
+			break;
+		case KEY_TYPE_PUB_N:
+			staging.cukPub.setModulus(buffer, offset, len);
+			Util.arrayCopyNonAtomic(buffer, offset, staging.ds4Id, OFFSET_ID_PUB_N, len);
+			break;
+		case KEY_TYPE_PUB_E:
+			staging.cukPub.setExponent(buffer, offset, len);
+			staging.copyIdPublicKeyE();
+			break;
+		case KEY_TYPE_PUB_SIG:
+			Util.arrayCopyNonAtomic(buffer, offset, staging.ds4Id, OFFSET_ID_SIG, len);
+			break;
+		case KEY_TYPE_PRIV_P:
+			staging.cukPriv.setP(buffer, offset, len);
+			break;
+		case KEY_TYPE_PRIV_Q:
+			staging.cukPriv.setQ(buffer, offset, len);
+			break;
+		case KEY_TYPE_PRIV_PQ:
+			staging.cukPriv.setPQ(buffer, offset, len);
+			break;
+		case KEY_TYPE_PRIV_DP1:
+			staging.cukPriv.setDP1(buffer, offset, len);
+			break;
+		case KEY_TYPE_PRIV_DQ1:
+			staging.cukPriv.setDQ1(buffer, offset, len);
+			break;
+		}
+		this.finishWrite(staging);
 	}
 
 	public short putPrivateKeyP(final byte[] buffer, short offset, short len) {
@@ -265,17 +655,12 @@ public class JediIdentity {
 	 * @return Number of bytes copied.
 	 */
 	public short putSerialNumber(final byte[] buffer, short boffset, short len) {
-		short sz;
-		if (len != this.serialNumber.length) {
+		if (len != LEN_ID_SERIAL) {
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 			return 0;
 		}
-		sz = Util.arrayCopyNonAtomic(buffer, boffset, this.serialNumber, (short) 0, len);
-		return sz;
-	}
-
-	public final byte[] getSerialNumber() {
-		return this.serialNumber;
+		this.putKeyObjectDirect(buffer, boffset, len, KEY_TYPE_SERIAL);
+		return len;
 	}
 
 	public short putPublicKeyN(final byte[] buffer, short offset, short len) {
@@ -287,7 +672,7 @@ public class JediIdentity {
 	}
 	
 	public short putPublicKeyEDirect(final byte[] buffer, short offset, short len) {
-		this.cukPub.setExponent(buffer, offset, len);
+		this.putKeyObjectDirect(buffer, offset, len, KEY_TYPE_PUB_E);
 		return len;
 	}
 
@@ -296,21 +681,26 @@ public class JediIdentity {
 	}
 
 	public final RSAPublicKey getPublicKey() {
-		return this.cukPub;
+		return this.getActiveSlot().cukPub;
 	}
 
 	public final byte[] exportPublicKeyN() {
+		this.leaseScratchPad();
 		this.setTmpKeyTypeFlag(KEY_TYPE_EXPORT_PUB_N);
+		this.arena.markDirty(RSA2048_INT_SIZE);
 		this.getPublicKey().getModulus(this.keyScratchPad, (short) 0);
 		return this.keyScratchPad;
 	}
 
 	private final byte[] exportPublicKeyE(short eSize) {
+		this.leaseScratchPad();
+		this.arena.markDirty(RSA2048_INT_SIZE);
 		short len = this.getPublicKey().getExponent(this.keyScratchPad, (short) 0);
 		short offset = (short) (eSize - len);
 		if (offset > 0) {
-			this.clearScratchPad();
-			this.getPublicKey().getExponent(this.keyScratchPad, offset);
+			// Left-pad in place. Overlapping copy within the same array is fine here.
+			Util.arrayCopyNonAtomic(this.keyScratchPad, (short) 0, this.keyScratchPad, offset, len);
+			Util.arrayFillNonAtomic(this.keyScratchPad, (short) 0, offset, (byte) 0);
 		}
 		return this.keyScratchPad;
 	}
@@ -330,22 +720,46 @@ public class JediIdentity {
 	}
 
 	public final RSAPrivateCrtKey getPrivateKey() {
-		return this.cukPriv;
+		return this.getActiveSlot().cukPriv;
+	}
+
+	/**
+	 * Returns the key epoch. It changes every time a new identity is committed or the identity is cleared.
+	 * Engines initialized with {@link #getPrivateKey()} only need to be re-initialized when it changes.
+	 * @return The key epoch.
+	 */
+	public short getKeyEpoch() {
+		return this.keyEpoch;
 	}
 
-	public final byte[] getIdSig() {
-		return this.idSig;
+	/**
+	 * Returns the signed DS4ID block of the active identity. Use the OFFSET_ID_* constants to locate
+	 * individual fields. The block is kept up-to-date on every import and key generation so no extraction
+	 * from the key objects is needed when reading it.
+	 * @return The signed DS4ID block.
+	 */
+	public final byte[] getDs4Id() {
+		return this.getActiveSlot().ds4Id;
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of the signed DS4ID block. Hosts can use it to tell whether a
+	 * cached copy of the block is still valid.
+	 * @return The fingerprint.
+	 */
+	public final byte[] getDs4IdFingerprint() {
+		return this.getActiveSlot().ds4IdFingerprint;
 	}
 
 	/**
-	 * Returns the readiness of the object.
+	 * Returns the readiness of the active identity.
 	 * 
 	 * Note that this only checks if the private and public keys are initialized.
 	 * Unsigned key blocks will still pass the test.
 	 * @return true if ready.
 	 */
 	public boolean isReady() {
-		return this.cukPriv.isInitialized() && this.cukPub.isInitialized();
+		return this.getActiveSlot().isReady();
 	}
 
 	public short getCurentImport() {
@@ -0,0 +1,72 @@
+package illegal.security.chip;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.security.CryptoException;
+import javacard.security.RSAPrivateCrtKey;
+import javacard.security.Signature;
+
+/**
+ * Signature engine backed by the PSS implementation of the card. Prehashed messages are always signed in
+ * software, since {@code Signature.signPreComputedHash} only exists from Java Card 3.0.5 on and the applet
+ * is built for 3.0.1.
+ */
+public class NativePssEngine implements SignatureEngine {
+	private final Signature sig;
+	/**
+	 * Software engine for prehashed messages. Created on the first prehashed message, so cards that never
+	 * see one don't pay for its transient memory.
+	 */
+	private SoftwarePssEngine prehashEngine;
+	private RSAPrivateCrtKey key;
+
+	/**
+	 * @throws javacard.security.CryptoException with reason NO_SUCH_ALGORITHM if the card doesn't implement
+	 * {@link Signature#ALG_RSA_SHA_256_PKCS1_PSS}.
+	 */
+	public NativePssEngine() {
+		this.sig = Signature.getInstance(Signature.ALG_RSA_SHA_256_PKCS1_PSS, false);
+	}
+
+	public byte getType() {
+		return ENGINE_NATIVE_PSS;
+	}
+
+	public byte getAlgorithm() {
+		return this.sig.getAlgorithm();
+	}
+
+	public void init(RSAPrivateCrtKey key) {
+		this.sig.init(key, Signature.MODE_SIGN);
+		if (this.prehashEngine != null) {
+			this.prehashEngine.init(key);
+		}
+		this.key = key;
+	}
+
+	public void update(byte[] inBuff, short inOffset, short inLength) {
+		this.sig.update(inBuff, inOffset, inLength);
+	}
+
+	public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+		return this.sig.sign(inBuff, inOffset, inLength, sigBuff, sigOffset);
+	}
+
+	/**
+	 * @throws ISOException with SW_FUNC_NOT_SUPPORTED if the card can't run the software engine.
+	 */
+	public short signPreComputedHash(byte[] hashBuff, short hashOffset, short hashLength, byte[] sigBuff, short sigOffset) {
+		if (this.prehashEngine == null) {
+			try {
+				this.prehashEngine = new SoftwarePssEngine();
+			} catch (CryptoException e) {
+				if (e.getReason() != CryptoException.NO_SUCH_ALGORITHM) {
+					throw (e);
+				}
+				ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+			}
+			this.prehashEngine.init(this.key);
+		}
+		return this.prehashEngine.signPreComputedHash(hashBuff, hashOffset, hashLength, sigBuff, sigOffset);
+	}
+}
@@ -0,0 +1,59 @@
+package illegal.security.chip;
+
+import javacard.security.RSAPrivateCrtKey;
+
+/**
+ * Produces the RSASSA-PSS (SHA-256, MGF1 with SHA-256, 32 byte salt) signature of the challenge. The message
+ * can be streamed in with {@link #update(byte[], short, short)} before the final
+ * {@link #sign(byte[], short, short, byte[], short)}, the same way as with {@link javacard.security.Signature}.
+ */
+public interface SignatureEngine {
+	/**
+	 * Picks the native engine if the card has it and falls back to the software one otherwise.
+	 */
+	public static final byte ENGINE_AUTO = (byte) 0;
+	/**
+	 * {@link javacard.security.Signature#ALG_RSA_SHA_256_PKCS1_PSS} provided by the card.
+	 */
+	public static final byte ENGINE_NATIVE_PSS = (byte) 1;
+	/**
+	 * EMSA-PSS encoded on card and signed with raw RSA.
+	 */
+	public static final byte ENGINE_SOFTWARE_PSS = (byte) 2;
+
+	/**
+	 * @return One of ENGINE_NATIVE_PSS and ENGINE_SOFTWARE_PSS.
+	 */
+	public byte getType();
+
+	/**
+	 * @return The equivalent {@link javacard.security.Signature} algorithm of the signatures produced.
+	 */
+	public byte getAlgorithm();
+
+	/**
+	 * Loads the private key and drops any partially hashed message.
+	 * @param key The private key.
+	 */
+	public void init(RSAPrivateCrtKey key);
+
+	/**
+	 * Hashes a part of the message.
+	 */
+	public void update(byte[] inBuff, short inOffset, short inLength);
+
+	/**
+	 * Hashes the rest of the message and signs it. The engine is ready for the next message afterwards.
+	 * The input and output buffer data may overlap.
+	 * @return Length of the signature.
+	 */
+	public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset);
+
+	/**
+	 * Signs a message hashed off card. Any partially hashed message is lost.
+	 * The input and output buffer data may overlap.
+	 * @param hashBuff The buffer containing the SHA-256 hash of the message.
+	 * @return Length of the signature.
+	 */
+	public short signPreComputedHash(byte[] hashBuff, short hashOffset, short hashLength, byte[] sigBuff, short sigOffset);
+}
@@ -0,0 +1,137 @@
+package illegal.security.chip;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.CryptoException;
+import javacard.security.MessageDigest;
+import javacard.security.RSAPrivateCrtKey;
+import javacard.security.RandomData;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+/**
+ * Signature engine for cards without a (working) native PSS implementation. The message is hashed with
+ * SHA-256, EMSA-PSS encoded as per RFC 8017 section 9.1.1 directly in the signature buffer and signed
+ * with raw RSA using the CRT private key.
+ *
+ * Only 2048-bit moduli with the most significant bit set are supported, which is what every DS4 key is.
+ */
+public class SoftwarePssEngine implements SignatureEngine {
+	private static final short LEN_HASH = (short) 32;
+	private static final short LEN_SALT = LEN_HASH;
+	private static final short LEN_EM = JediIdentity.RSA2048_INT_SIZE;
+	// EM = maskedDB || H || 0xbc, DB = PS || 0x01 || salt
+	private static final short LEN_DB = (short) (LEN_EM - LEN_HASH - 1);
+	private static final short OFFSET_EM_H = LEN_DB;
+	private static final short OFFSET_EM_TRAILER = (short) (LEN_EM - 1);
+	private static final short OFFSET_DB_SEPARATOR = (short) (LEN_DB - LEN_SALT - 1);
+	private static final short OFFSET_DB_SALT = (short) (LEN_DB - LEN_SALT);
+	private static final byte EM_TRAILER = (byte) 0xbc;
+
+	// M' = (0x)00 00 00 00 00 00 00 00 || mHash || salt
+	private static final short OFFSET_WORK_MHASH = (short) 8;
+	private static final short OFFSET_WORK_SALT = (short) (OFFSET_WORK_MHASH + LEN_HASH);
+	private static final short LEN_M_PRIME = (short) (OFFSET_WORK_SALT + LEN_SALT);
+	// MGF1 seed (H || counter) followed by the mask block, reusing the same work buffer.
+	private static final short OFFSET_WORK_MGF_COUNTER = LEN_HASH;
+	private static final short LEN_MGF_SEED = (short) (LEN_HASH + 4);
+	private static final short OFFSET_WORK_MGF_MASK = LEN_MGF_SEED;
+	private static final short LEN_WORK = LEN_M_PRIME;
+
+	private final MessageDigest sha256;
+	private final Cipher rsa;
+	private final RandomData random;
+	private final byte[] work;
+
+	/**
+	 * @throws javacard.security.CryptoException with reason NO_SUCH_ALGORITHM if the card doesn't implement
+	 * SHA-256 or raw RSA.
+	 */
+	public SoftwarePssEngine() {
+		this.sha256 = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+		this.rsa = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+		this.random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+		this.work = JCSystem.makeTransientByteArray(LEN_WORK, JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	public byte getType() {
+		return ENGINE_SOFTWARE_PSS;
+	}
+
+	public byte getAlgorithm() {
+		return Signature.ALG_RSA_SHA_256_PKCS1_PSS;
+	}
+
+	public void init(RSAPrivateCrtKey key) {
+		// Raw RSA with the private key, i.e. RSASP1.
+		this.rsa.init(key, Cipher.MODE_DECRYPT);
+		this.sha256.reset();
+	}
+
+	public void update(byte[] inBuff, short inOffset, short inLength) {
+		this.sha256.update(inBuff, inOffset, inLength);
+	}
+
+	public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+		// Input is fully consumed here so it may overlap with the signature.
+		this.sha256.doFinal(inBuff, inOffset, inLength, this.work, OFFSET_WORK_MHASH);
+		return this.encodeAndSign(sigBuff, sigOffset);
+	}
+
+	public short signPreComputedHash(byte[] hashBuff, short hashOffset, short hashLength, byte[] sigBuff, short sigOffset) {
+		if (hashLength != LEN_HASH) {
+			CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		}
+		Util.arrayCopyNonAtomic(hashBuff, hashOffset, this.work, OFFSET_WORK_MHASH, LEN_HASH);
+		// The digest is reused for encoding.
+		this.sha256.reset();
+		return this.encodeAndSign(sigBuff, sigOffset);
+	}
+
+	/**
+	 * EMSA-PSS encodes the message hash already in the work buffer into the signature buffer and signs it.
+	 */
+	private short encodeAndSign(byte[] sigBuff, short sigOffset) {
+		byte[] work = this.work;
+
+		Util.arrayFillNonAtomic(work, (short) 0, OFFSET_WORK_MHASH, (byte) 0);
+		this.random.generateData(work, OFFSET_WORK_SALT, LEN_SALT);
+		this.sha256.doFinal(work, (short) 0, LEN_M_PRIME, sigBuff, (short) (sigOffset + OFFSET_EM_H));
+
+		Util.arrayFillNonAtomic(sigBuff, sigOffset, OFFSET_DB_SEPARATOR, (byte) 0);
+		sigBuff[(short) (sigOffset + OFFSET_DB_SEPARATOR)] = (byte) 0x01;
+		Util.arrayCopyNonAtomic(work, OFFSET_WORK_SALT, sigBuff, (short) (sigOffset + OFFSET_DB_SALT), LEN_SALT);
+
+		this.maskDb(sigBuff, sigOffset);
+		// emBits is one less than the modulus size so the leftmost bit is always cleared.
+		sigBuff[sigOffset] &= (byte) 0x7f;
+		sigBuff[(short) (sigOffset + OFFSET_EM_TRAILER)] = EM_TRAILER;
+
+		Util.arrayFillNonAtomic(work, (short) 0, LEN_WORK, (byte) 0);
+		return this.rsa.doFinal(sigBuff, sigOffset, LEN_EM, sigBuff, sigOffset);
+	}
+
+	/**
+	 * XORs DB in place with MGF1(H, LEN_DB), where H is already in place after DB.
+	 */
+	private void maskDb(byte[] em, short emOffset) {
+		byte[] work = this.work;
+		Util.arrayCopyNonAtomic(em, (short) (emOffset + OFFSET_EM_H), work, (short) 0, LEN_HASH);
+		Util.arrayFillNonAtomic(work, OFFSET_WORK_MGF_COUNTER, (short) 4, (byte) 0);
+
+		short offset = 0;
+		byte counter = 0;
+		while (offset < LEN_DB) {
+			work[(short) (OFFSET_WORK_MGF_COUNTER + 3)] = counter++;
+			this.sha256.doFinal(work, (short) 0, LEN_MGF_SEED, work, OFFSET_WORK_MGF_MASK);
+			short blockSize = LEN_HASH;
+			if ((short) (LEN_DB - offset) < blockSize) {
+				blockSize = (short) (LEN_DB - offset);
+			}
+			for (short i = 0; i < blockSize; i++) {
+				em[(short) (emOffset + offset + i)] ^= work[(short) (OFFSET_WORK_MGF_MASK + i)];
+			}
+			offset += blockSize;
+		}
+	}
+}
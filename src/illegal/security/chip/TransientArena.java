@@ -0,0 +1,101 @@
+package illegal.security.chip;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Transient buffer shared between users that never need it at the same time (i.e. the challenge/signature
+ * buffers of the {@link ISCApplet} sessions and the scratch pad of {@link JediIdentity}). The buffer is
+ * leased to one owner at a time and the owner tag tells each user whether its data is still there.
+ *
+ * Owners report how far into the buffer they have written with {@link #markDirty(short)} so only that
+ * part needs to be cleared.
+ */
+public class TransientArena {
+	public static final short OWNER_NONE = (short) 0;
+	public static final short OWNER_IDENTITY = (short) 1;
+	public static final short OWNER_BENCHMARK = (short) 2;
+	/**
+	 * Owner of the challenge/signature buffer of the session on the basic channel. The session on logical
+	 * channel n uses OWNER_AUTH + n.
+	 */
+	public static final short OWNER_AUTH = (short) 3;
+
+	private static final short OFFSET_STATE_OWNER = (short) 0;
+	// Everything before this offset may contain data.
+	private static final short OFFSET_STATE_DIRTY_END = (short) 1;
+	private static final short LEN_STATE = (short) 2;
+
+	/**
+	 * The shared buffer.
+	 */
+	private final byte[] buffer;
+	/**
+	 * Transient state array.
+	 */
+	private final short[] state;
+
+	public TransientArena(short size) {
+		this.buffer = JCSystem.makeTransientByteArray(size, JCSystem.CLEAR_ON_DESELECT);
+		this.state = JCSystem.makeTransientShortArray(LEN_STATE, JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/**
+	 * Leases the buffer to an owner. If the buffer was leased to someone else, the lease is taken over and
+	 * the buffer is cleared so no data leaks between owners.
+	 * @param owner The new owner.
+	 * @return The previous owner. Anything other than the new owner means that the buffer does not
+	 * contain any data from the new owner.
+	 */
+	public short acquire(short owner) {
+		short previous = this.state[OFFSET_STATE_OWNER];
+		if (previous != owner) {
+			if (previous != OWNER_NONE) {
+				this.clear();
+			}
+			this.state[OFFSET_STATE_OWNER] = owner;
+		}
+		return previous;
+	}
+
+	/**
+	 * Clears the buffer and ends the lease if it is held by the owner. Does nothing otherwise.
+	 * @param owner The owner.
+	 */
+	public void release(short owner) {
+		if (this.state[OFFSET_STATE_OWNER] == owner) {
+			this.clear();
+			this.state[OFFSET_STATE_OWNER] = OWNER_NONE;
+		}
+	}
+
+	/**
+	 * Records that the buffer has been written up to (but not including) an offset.
+	 * @param end The offset after the last byte written.
+	 */
+	public void markDirty(short end) {
+		if (end > this.state[OFFSET_STATE_DIRTY_END]) {
+			this.state[OFFSET_STATE_DIRTY_END] = end;
+		}
+	}
+
+	/**
+	 * Returns the current owner, or {@link #OWNER_NONE} if the buffer is not leased.
+	 */
+	public short getOwner() {
+		return this.state[OFFSET_STATE_OWNER];
+	}
+
+	public boolean isOwnedBy(short owner) {
+		return this.state[OFFSET_STATE_OWNER] == owner;
+	}
+
+	public final byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	private void clear() {
+		Util.arrayFillNonAtomic(this.buffer, (short) 0, this.state[OFFSET_STATE_DIRTY_END], (byte) 0);
+		this.state[OFFSET_STATE_DIRTY_END] = 0;
+	}
+}
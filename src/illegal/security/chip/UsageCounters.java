@@ -0,0 +1,119 @@
+package illegal.security.chip;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Set of 32-bit usage counters. Increments are accumulated in transient memory and only added to the
+ * persistent totals every {@link #FLUSH_INTERVAL} commands, when a pending increment would overflow or
+ * when the counters are read, so counting stays off the EEPROM in the command path.
+ *
+ * Pending increments are lost on card reset, i.e. the totals may be behind by up to FLUSH_INTERVAL commands
+ * after a power loss.
+ */
+public class UsageCounters {
+	public static final short LEN_COUNTER = (short) 4;
+	public static final short FLUSH_INTERVAL = (short) 256;
+
+	/**
+	 * Persistent totals, 32-bit big-endian each.
+	 */
+	private final byte[] totals;
+	/**
+	 * Pending increments of each counter, followed by the number of commands since the last flush.
+	 */
+	private final short[] pending;
+	private final short offsetPendingCommands;
+	/**
+	 * Used for building the new total so it can be written atomically.
+	 */
+	private final byte[] scratch;
+
+	public UsageCounters(short count) {
+		this.totals = new byte[(short) (count * LEN_COUNTER)];
+		this.pending = JCSystem.makeTransientShortArray((short) (count + 1), JCSystem.CLEAR_ON_RESET);
+		this.offsetPendingCommands = count;
+		this.scratch = JCSystem.makeTransientByteArray(LEN_COUNTER, JCSystem.CLEAR_ON_RESET);
+	}
+
+	/**
+	 * Marks the start of a command. Flushes the pending increments once every FLUSH_INTERVAL commands.
+	 */
+	public void tick() {
+		short commands = (short) (this.pending[this.offsetPendingCommands] + 1);
+		if (commands >= FLUSH_INTERVAL) {
+			this.flush();
+			commands = 0;
+		}
+		this.pending[this.offsetPendingCommands] = commands;
+	}
+
+	public void increment(short index) {
+		this.add(index, (short) 1);
+	}
+
+	/**
+	 * Adds a non-negative value to a counter.
+	 */
+	public void add(short index, short value) {
+		short sum = (short) (this.pending[index] + value);
+		if (sum < 0) {
+			// Would overflow. Move what we have to the persistent total first.
+			this.flushCounter(index);
+			sum = value;
+		}
+		this.pending[index] = sum;
+	}
+
+	/**
+	 * Adds all pending increments to the persistent totals.
+	 */
+	public void flush() {
+		for (short i = 0; i < this.offsetPendingCommands; i++) {
+			this.flushCounter(i);
+		}
+	}
+
+	/**
+	 * Flushes the counters and copies all totals into a buffer, in index order.
+	 * @return The offset after the last byte written.
+	 */
+	public short read(byte[] buf, short offset) {
+		this.flush();
+		return Util.arrayCopyNonAtomic(this.totals, (short) 0, buf, offset, (short) this.totals.length);
+	}
+
+	/**
+	 * Clears both the persistent totals and the pending increments.
+	 */
+	public void reset() {
+		Util.arrayFillNonAtomic(this.totals, (short) 0, (short) this.totals.length, (byte) 0);
+		for (short i = 0; i <= this.offsetPendingCommands; i++) {
+			this.pending[i] = 0;
+		}
+	}
+
+	public short getCount() {
+		return this.offsetPendingCommands;
+	}
+
+	private void flushCounter(short index) {
+		short value = this.pending[index];
+		if (value == 0) {
+			return;
+		}
+		byte[] scratch = this.scratch;
+		short offset = (short) (index * LEN_COUNTER);
+		Util.arrayCopyNonAtomic(this.totals, offset, scratch, (short) 0, LEN_COUNTER);
+		short low = Util.getShort(scratch, (short) 2);
+		short newLow = (short) (low + value);
+		Util.setShort(scratch, (short) 2, newLow);
+		// Unsigned comparison. The lower half wrapped around if it ended up smaller.
+		if ((short) (newLow ^ (short) 0x8000) < (short) (low ^ (short) 0x8000)) {
+			Util.setShort(scratch, (short) 0, (short) (Util.getShort(scratch, (short) 0) + 1));
+		}
+		// Atomic so the total is never torn.
+		Util.arrayCopy(scratch, (short) 0, this.totals, offset, LEN_COUNTER);
+		this.pending[index] = 0;
+	}
+}
@@ -5,6 +5,9 @@ import enum
 import functools
 import io
 import os
+import socket
+import struct
+import time
 
 from ctypes import *
 from contextlib import contextmanager
@@ -32,6 +35,12 @@ ISOINS_SELECT = 0xa4
 ISOP1_SELECT_BY_DF_NAME = 0x04
 ISOP2_FIRST_RECORD = 0x04
 
+ISO_CLA = 0x00
+ISO_INS_GET_RESPONSE = 0xc0
+
+# P2 of GET_RESPONSE (with P1 = 0) and of the DS4ID export that asks for 61xx chaining.
+ISC_P2_RESP_CHAIN = 0xff
+
 class ISCCLA(enum.IntEnum):
     auth = 0x80
     config = 0x90
@@ -41,15 +50,29 @@ class ISCAuthINS(enum.IntEnum):
     set_challenge = 0x44
     get_response = 0x46
     reset = 0x48
+    challenge_response = 0x4a
+    get_fingerprint = 0x4c
+    get_signature = 0x4e
+    get_challenge_status = 0x50
+    set_challenge_hash = 0x52
+    set_challenge_chained = 0x54
 
 
 class ISCConfigINS(enum.IntEnum):
     get_version = 0x00
     get_status = 0x01
+    get_capabilities = 0x02
+    benchmark = 0x03
+    get_counters = 0x04
     reset = 0x0f
     
     import_ = 0x10
+    import_at = 0x11
+    import_status = 0x12
     export = 0x20
+    commit = 0x30
+    discard = 0x31
+    begin_staging = 0x32
 
     gen_keys = 0xfd
     enter_stealth_mode = 0xfe
@@ -61,11 +84,26 @@ class ISCImportType(enum.IntEnum):
     pub_e = 0x02
     pub_e_compat = 0x83
     sig_id = 0x04
+    ds4id = 0x08
     priv_p = 0x10
     priv_q = 0x11
     priv_pq = 0x12
     priv_dp1 = 0x13
     priv_dq1 = 0x14
+    bundle = 0xc0
+
+
+class ISCSignatureEngine(enum.IntEnum):
+    auto = 0x00
+    native = 0x01
+    software = 0x02
+
+
+def _engine_name(engine):
+    try:
+        return ISCSignatureEngine(engine).name
+    except ValueError:
+        return f'unknown (0x{engine:02x})'
 
 class APDU:
     def __init__(self, cla, ins, p1, p2, payload=None, le=0, force_extended=False):
@@ -166,6 +204,7 @@ def parse_args():
     mex_reader = p.add_mutually_exclusive_group()
     mex_reader.add_argument('-r', '--reader-index', type=int, dest='reader', default=None, metavar='IDX', help='Reader index shown on list-readers.')
     mex_reader.add_argument('-n', '--reader-name', dest='reader', default=None, metavar='NAME', help='Reader name (can be partial).')
+    mex_reader.add_argument('-t', '--tcp', default=None, metavar='HOST:PORT', help='Use a simulated card served by the APDU server instead of a reader.')
     p.add_argument('-a', '--aid', type=bytes.fromhex, default=AID, help='Custom AID.')
     p.add_argument('-d', '--debug', action='store_true', help='Print protocol trace.')
     p.add_argument('-y', '--yes', action='store_true', help='Automatically answer yes on confirm.')
@@ -176,6 +215,23 @@ def parse_args():
     sp = sps.add_parser('applet-info',
                         help='Get applet info.')
 
+    sp = sps.add_parser('capabilities',
+                        help='Show transport related capabilities of the card.')
+    sp.add_argument('-p', '--probe-size', type=autobase, default=0x200,
+                    help='Size of the probe data sent in an extended length APDU. Use 0 to skip the probe.')
+
+    sp = sps.add_parser('benchmark',
+                        help='Time the on-card signature engine and DS4ID copies without transport overhead.')
+    sp.add_argument('-s', '--sign-iterations', type=autobase, default=8,
+                    help='Number of sign operations (0-16).')
+    sp.add_argument('-c', '--copy-iterations', type=autobase, default=64,
+                    help='Number of DS4ID copies (0-255).')
+
+    sp = sps.add_parser('counters',
+                        help='Show the on-card usage counters.')
+    sp.add_argument('-r', '--reset', action='store_true',
+                    help='Reset the counters after reading.')
+
     sp = sps.add_parser('is-ready',
                         help='Check whether or not the card is ready.')
 
@@ -190,6 +246,14 @@ def parse_args():
                     default='warn')
     sp.add_argument('-p', '--page-size', type=autobase, default=0x80,
                     help='Page size. Use 0 to send/receive all data with a single request.')
+    sp.add_argument('-s', '--single-apdu', action='store_true',
+                    help='Send the challenge and receive the response with a single extended length APDU. Page size is ignored.')
+    sp.add_argument('-g', '--get-response-chaining', action='store_true',
+                    help='Receive the response with ISO GET RESPONSE (61xx) chaining instead of paging. Works without extended length APDU.')
+    sp.add_argument('-H', '--prehash', action='store_true',
+                    help='Send the SHA-256 hash of the challenge instead of the challenge itself.')
+    sp.add_argument('-v', '--verify-challenge', action='store_true',
+                    help='Ask the card which parts of the challenge it missed and resend them. Costs an extra round trip.')
 
     sp = sps.add_parser('import-ds4key',
                         help='Import DS4Key to the card.')
@@ -198,6 +262,12 @@ def parse_args():
     sp.add_argument('--allow-oversized-exponent',
                     action='store_true',
                     help='Allow public exponent to be larger than 32-bit. Not all JavaCard implementation supports this so it might not work.')
+    sp.add_argument('-b', '--bundle',
+                    action='store_true',
+                    help='Upload everything with a single extended length APDU. Requires a large enough APDU buffer on the card.')
+    sp.add_argument('-r', '--resumable',
+                    action='store_true',
+                    help='Upload by offset and only send the parts the card has not received yet. Run again to resume an interrupted upload.')
 
     sp = sps.add_parser('export-ds4id',
                         help='Export DS4ID and the signature from the card.')
@@ -276,11 +346,64 @@ def _load_key_and_check(keyfile, expected_fingerprint):
     fingerprint_match = SHA256.new(key.exportKey('DER')).digest() == expected_fingerprint
     return key, fingerprint_match
 
+class TcpConnection:
+    '''
+    Connection to the APDU server (see server/ in the repository). Messages are framed with a 2-byte
+    big-endian length. Has the subset of the pyscard CardConnection interface used here.
+    '''
+    CTRL_POWER_ON = 0x01
+
+    def __init__(self, address, debug=False):
+        host, _, port = address.rpartition(':')
+        self.address = (host or 'localhost', int(port))
+        self.debug = debug
+        self.sock = None
+
+    def connect(self):
+        self.sock = socket.create_connection(self.address)
+        self._send(bytes((self.CTRL_POWER_ON, )))
+
+    def disconnect(self):
+        if self.sock is not None:
+            self.sock.close()
+            self.sock = None
+
+    def transmit(self, apdu):
+        apdu = bytes(apdu)
+        if self.debug:
+            print('>', apdu.hex())
+        self._send(apdu)
+        length = struct.unpack('>H', self._recv(2))[0]
+        resp = self._recv(length)
+        if self.debug:
+            print('<', resp.hex())
+        if len(resp) < 2:
+            raise IOError('Response too short.')
+        return list(resp[:-2]), resp[-2], resp[-1]
+
+    def _send(self, data):
+        self.sock.sendall(struct.pack('>H', len(data)) + data)
+
+    def _recv(self, length):
+        data = bytearray()
+        while len(data) < length:
+            chunk = self.sock.recv(length - len(data))
+            if not chunk:
+                raise IOError('Connection closed by the server (all of its cards might be in use).')
+            data.extend(chunk)
+        return bytes(data)
+
 def _select(conn, aid):
     resp, sw1, sw2 = conn.transmit(APDU(cla=ISOCLA, ins=ISOINS_SELECT, p1=ISOP1_SELECT_BY_DF_NAME, p2=ISOP2_FIRST_RECORD, payload=aid).to_list())
     _check_error(resp, sw1, sw2)
 
 def _do_connect_and_select(p, args):
+    if args.tcp is not None:
+        conn = TcpConnection(args.tcp, args.debug)
+        conn.connect()
+        _select(conn, args.aid)
+        return conn
+
     readers = scsys.readers()
     if len(readers) == 0:
         p.error('No readers found.')
@@ -309,8 +432,32 @@ def _do_connect_and_select(p, args):
     _select(conn, args.aid)
     return conn
 
+def _transmit_chained(conn, apdu):
+    '''
+    Transmits an APDU and drains the rest of the response with ISO GET RESPONSE as long as the card
+    returns 61xx.
+    '''
+    resp, sw1, sw2 = conn.transmit(apdu.to_list())
+    resp = list(resp)
+    while sw1 == 0x61:
+        le = sw2 if sw2 != 0 else 0x100
+        more, sw1, sw2 = conn.transmit(APDU(ISO_CLA, ISO_INS_GET_RESPONSE, 0x00, 0x00, le=le).to_list())
+        resp.extend(more)
+    return resp, sw1, sw2
+
 def _do_export_ds4id(conn):
     ds4id_signed = DS4SignedIdentityBlock()
+    ds4id_len = sizeof(DS4SignedIdentityBlock)
+
+    # Try the whole block at once, then with response chaining.
+    resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.export, ISCImportType.ds4id, 0x00, le=ds4id_len, force_extended=True).to_list())
+    if (sw1, sw2) != (0x90, 0x00):
+        resp, sw1, sw2 = _transmit_chained(conn, APDU(ISCCLA.config, ISCConfigINS.export, ISCImportType.ds4id, ISC_P2_RESP_CHAIN, le=0x100))
+    if (sw1, sw2) == (0x90, 0x00) and len(resp) == ds4id_len:
+        memmove(addressof(ds4id_signed), bytes(resp), ds4id_len)
+        return ds4id_signed
+
+    # Fall back to export individual fields for older versions of the applet.
 
     field_types = (
         (ISCImportType.serial, sizeof(ds4id_signed.identity.serial)),
@@ -358,6 +505,109 @@ def do_applet_info(p, args):
     else:
         print(f'Found IllegalSecurityChip applet version {resp[len(ISC_MAGIC)]}.{resp[len(ISC_MAGIC)+1]}')
 
+def _parse_tlv(data):
+    entries = {}
+    offset = 0
+    while offset + 2 <= len(data):
+        tag, length = data[offset], data[offset+1]
+        entries[tag] = data[offset+2:offset+2+length]
+        offset += 2 + length
+    return entries
+
+def do_capabilities(p, args):
+    probe = os.urandom(args.probe_size) if args.probe_size > 0 else None
+    with disconnectable(_do_connect_and_select(p, args)) as conn:
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.reset, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.get_capabilities, 0x00, 0x00, payload=probe, le=0x200, force_extended=True).to_list())
+        _check_error(resp, sw1, sw2)
+    caps = _parse_tlv(bytes(resp))
+    if 0x01 in caps:
+        print('APDU buffer size:', int.from_bytes(caps[0x01], 'big'))
+    if 0x02 in caps:
+        print('Block size (in/out):', int.from_bytes(caps[0x02][:2], 'big'), int.from_bytes(caps[0x02][2:4], 'big'))
+    if 0x03 in caps:
+        print(f'Protocol: 0x{caps[0x03][0]:02x}')
+    if 0x04 in caps:
+        probe_info = caps[0x04]
+        print('Extended length:', 'yes' if probe_info[0] else 'no')
+        print('Probe (first block/total/Le):', int.from_bytes(probe_info[1:3], 'big'), int.from_bytes(probe_info[3:5], 'big'), int.from_bytes(probe_info[5:7], 'big'))
+    if 0x05 in caps:
+        print(f'Signature engine: algorithm 0x{caps[0x05][0]:02x}, {_engine_name(caps[0x05][1])}')
+    if 0x06 in caps:
+        print('Response size:', int.from_bytes(caps[0x06], 'big'))
+    if 0x07 in caps:
+        print('Auth INS:', caps[0x07].hex(' '))
+    if 0x08 in caps:
+        print('Config INS:', caps[0x08].hex(' '))
+
+# Upper limit of sign operations per benchmark command, so it returns before reader timeouts.
+BENCHMARK_MAX_SIGNS = 16
+
+def do_benchmark(p, args):
+    if not 0 <= args.sign_iterations <= BENCHMARK_MAX_SIGNS:
+        p.error(f'Sign iterations must be between 0 and {BENCHMARK_MAX_SIGNS}.')
+    if not 0 <= args.copy_iterations <= 0xff:
+        p.error('Copy iterations must be between 0 and 255.')
+    with disconnectable(_do_connect_and_select(p, args)) as conn:
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.reset, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
+        # Baseline for transport overhead
+        start = time.perf_counter()
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.benchmark, 0x00, 0x00, le=7).to_list())
+        baseline = time.perf_counter() - start
+        _check_error(resp, sw1, sw2)
+
+        start = time.perf_counter()
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.benchmark, args.sign_iterations, args.copy_iterations, le=7).to_list())
+        elapsed = time.perf_counter() - start
+        _check_error(resp, sw1, sw2)
+    resp = bytes(resp)
+    signs = int.from_bytes(resp[0:2], 'big')
+    copies = int.from_bytes(resp[2:4], 'big')
+    print(f'{signs} sign(s), {copies} cop(ies), checksum {resp[4:6].hex()}')
+    # Older versions don't report the engine.
+    if len(resp) > 6:
+        print('Signature engine:', _engine_name(resp[6]))
+    print(f'Total {elapsed*1000:.2f}ms, transport baseline {baseline*1000:.2f}ms')
+
+COUNTER_NAMES = (
+    'Challenges signed',
+    'Bytes received',
+    'Bytes sent',
+    'SW warnings (62xx-63xx)',
+    'SW execution errors (64xx-66xx)',
+    'SW checking errors (67xx-6Fxx)',
+    'ISO GET RESPONSE',
+    'Unknown CLA/INS',
+)
+
+def _ins_name(enum_cls, ins):
+    try:
+        return enum_cls(ins).name
+    except ValueError:
+        return f'0x{ins:02x}'
+
+def do_counters(p, args):
+    with disconnectable(_do_connect_and_select(p, args)) as conn:
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.get_capabilities, 0x00, 0x00, le=0x100).to_list())
+        _check_error(resp, sw1, sw2)
+        caps = _parse_tlv(bytes(resp))
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.get_counters, 0x01 if args.reset else 0x00, 0x00, le=0x100).to_list())
+        _check_error(resp, sw1, sw2)
+    resp = bytes(resp)
+    # Per-INS counters follow the fixed ones, in the order reported by capabilities.
+    names = list(COUNTER_NAMES)
+    names.extend(f'AUTH {_ins_name(ISCAuthINS, ins)}' for ins in caps.get(0x07, b''))
+    names.extend(f'CONFIG {_ins_name(ISCConfigINS, ins)}' for ins in caps.get(0x08, b''))
+    for i in range(resp[0]):
+        name = names[i] if i < len(names) else f'Counter {i}'
+        print(f'{name}: {int.from_bytes(resp[1+i*4:5+i*4], "big")}')
+    if args.reset:
+        print('Counters reset.')
+
 def do_gen_key(p, args):
     if not args.yes and input('WARNING: Old keys will be overwritten. Type all capital YES and press Enter to confirm or just press Enter to abort. ').strip() != 'YES':
         print('Aborted.')
@@ -366,9 +616,18 @@ def do_gen_key(p, args):
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.reset, 0x00, 0x00).to_list())
         _check_error(resp, sw1, sw2)
 
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.discard, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.begin_staging, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.gen_keys, 0x00, 0x00).to_list())
         _check_error(resp, sw1, sw2)
 
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.commit, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
 def do_is_ready(p, args):
     with disconnectable(_do_connect_and_select(p, args)) as conn:
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.reset, 0x00, 0x00).to_list())
@@ -377,6 +636,8 @@ def do_is_ready(p, args):
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.get_status, 0x00, 0x00).to_list())
         _check_error(resp, sw1, sw2)
     print(f'Card is {"NOT " if resp[0] == 0x00 else ""}ready')
+    if len(resp) > 1 and resp[1] != 0x00:
+        print('Card has uncommitted changes')
 
 def do_nuke(p, args):
     if not args.yes and input('WARNING: All data including secret keys will be permanently deleted. Type all capital YES and press Enter to confirm or just press Enter to abort. ').strip() != 'YES':
@@ -386,6 +647,29 @@ def do_nuke(p, args):
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.nuke, 0x00, 0x00).to_list())
         _check_error(resp, sw1, sw2)
 
+CHALLENGE_BLOCK_SIZE = 8
+
+def _resend_missing_challenge(conn, nonce, retries=3):
+    # One more status query than resend passes so the last pass gets verified too.
+    for attempt in range(retries + 1):
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.get_challenge_status, 0x00, 0x00, le=5).to_list())
+        if (sw1, sw2) != (0x90, 0x00):
+            # GET_CHALLENGE_STATUS is specific to this applet (older versions and the A7105 don't have it).
+            # Nothing we can do.
+            return
+        missing = int.from_bytes(bytes(resp[0:4]), 'big')
+        if resp[4] != 0x00:
+            return
+        if attempt == retries:
+            break
+        print(f'Card is missing part of the nonce (map {missing:08x}). Resending...')
+        for block in range(len(nonce) // CHALLENGE_BLOCK_SIZE):
+            if missing & (1 << block):
+                offset = block * CHALLENGE_BLOCK_SIZE
+                resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.set_challenge, CHALLENGE_BLOCK_SIZE, block, payload=nonce[offset:offset + CHALLENGE_BLOCK_SIZE]).to_list())
+                _check_error(resp, sw1, sw2)
+    raise RuntimeError('Card did not receive the whole nonce.')
+
 def do_test_auth(p, args):
     ca = None
     ca_pss = None
@@ -408,33 +692,49 @@ def do_test_auth(p, args):
         sha_nonce = SHA256.new(nonce)
 
         print(f'Using nonce {nonce.hex()}')
-        # TODO support for paging
-        print(f'Sending nonce...')
-
-        nonce_io = io.BytesIO(nonce)
-        all_at_once = args.page_size == 0
-        page = 0
-
-        while nonce_io.tell() != len(nonce):
-            if all_at_once:
-                chunk = nonce_io.read()
-            else:
-                chunk = nonce_io.read(args.page_size)
-            resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.set_challenge, args.page_size, page, payload=chunk).to_list())
-            _check_error(resp, sw1, sw2)
-            page += 1
-        print(f'Receiving response...')
         chunks = []
-        page = 0
-        while len(chunks) < sizeof(DS4Response):
-            if all_at_once:
-                le = sizeof(DS4Response)
-            else:
-                le = min(sizeof(DS4Response) - len(chunks), args.page_size)
-            resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.get_response, args.page_size, page, le=le).to_list())
+        if args.single_apdu:
+            print(f'Sending nonce and receiving response...')
+            resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.challenge_response, 0x00, 0x00, payload=nonce, le=sizeof(DS4Response)).to_list())
             chunks.extend(resp)
             _check_error(resp, sw1, sw2)
-            page += 1
+        else:
+            all_at_once = args.page_size == 0
+            if args.prehash:
+                print(f'Sending nonce hash...')
+                resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.set_challenge_hash, 0x00, 0x00, payload=sha_nonce.digest()).to_list())
+                _check_error(resp, sw1, sw2)
+            else:
+                print(f'Sending nonce...')
+
+                nonce_io = io.BytesIO(nonce)
+                page = 0
+
+                while nonce_io.tell() != len(nonce):
+                    if all_at_once:
+                        chunk = nonce_io.read()
+                    else:
+                        chunk = nonce_io.read(args.page_size)
+                    resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.set_challenge, args.page_size, page, payload=chunk).to_list())
+                    _check_error(resp, sw1, sw2)
+                    page += 1
+                if args.verify_challenge:
+                    _resend_missing_challenge(conn, nonce)
+            print(f'Receiving response...')
+            page = 0
+            if args.get_response_chaining:
+                resp, sw1, sw2 = _transmit_chained(conn, APDU(ISCCLA.auth, ISCAuthINS.get_response, 0x00, ISC_P2_RESP_CHAIN, le=0x100))
+                chunks.extend(resp)
+                _check_error(resp, sw1, sw2)
+            while len(chunks) < sizeof(DS4Response):
+                if all_at_once:
+                    le = sizeof(DS4Response)
+                else:
+                    le = min(sizeof(DS4Response) - len(chunks), args.page_size)
+                resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.auth, ISCAuthINS.get_response, args.page_size, page, le=le).to_list())
+                chunks.extend(resp)
+                _check_error(resp, sw1, sw2)
+                page += 1
         full_response = bytes(chunks)
 
         if len(full_response) != sizeof(DS4Response):
@@ -470,6 +770,81 @@ def do_test_auth(p, args):
         else:
             print('Response OK.')
 
+def _tlv(tag, value):
+    value = bytes(value)
+    if len(value) < 0x80:
+        return bytes((tag, len(value))) + value
+    elif len(value) < 0x100:
+        return bytes((tag, 0x81, len(value))) + value
+    else:
+        return bytes((tag, 0x82)) + len(value).to_bytes(2, 'big') + value
+
+def _build_import_bundle(ds4key, oversized_e):
+    if oversized_e:
+        exponent = _tlv(ISCImportType.pub_e, ds4key.identity.exponent)
+    else:
+        exponent = _tlv(ISCImportType.pub_e_compat, bytes(ds4key.identity.exponent)[-4:])
+    return b''.join((
+        _tlv(ISCImportType.serial, ds4key.identity.serial),
+        _tlv(ISCImportType.pub_n, ds4key.identity.modulus),
+        exponent,
+        _tlv(ISCImportType.sig_id, ds4key.sig_identity),
+        _tlv(ISCImportType.priv_p, ds4key.private_key.p),
+        _tlv(ISCImportType.priv_q, ds4key.private_key.q),
+        _tlv(ISCImportType.priv_pq, ds4key.private_key.pq),
+        _tlv(ISCImportType.priv_dp1, ds4key.private_key.dp1),
+        _tlv(ISCImportType.priv_dq1, ds4key.private_key.dq1),
+    ))
+
+IMPORT_BLOCK_SIZE = 0x10
+
+def _get_import_missing(conn):
+    resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_status, 0x00, 0x00, le=0x100).to_list())
+    _check_error(resp, sw1, sw2)
+    return {tag: int.from_bytes(value, 'big') for tag, value in _parse_tlv(bytes(resp)).items()}
+
+def _import_at(conn, type_, data, missing, page_size=0x80):
+    data = bytes(data)
+    nblocks = len(data) // IMPORT_BLOCK_SIZE
+    block = 0
+    while block < nblocks:
+        if not missing & (1 << block):
+            block += 1
+            continue
+        # Send the run of missing blocks, one page at a time.
+        end = block
+        while end < nblocks and missing & (1 << end) and (end - block + 1) * IMPORT_BLOCK_SIZE <= page_size:
+            end += 1
+        offset = block * IMPORT_BLOCK_SIZE
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_at, type_, offset, payload=data[offset:end * IMPORT_BLOCK_SIZE]).to_list())
+        _check_error(resp, sw1, sw2)
+        block = end
+
+def _do_import_ds4key_resumable(conn, ds4key, oversized_e):
+    missing = _get_import_missing(conn)
+    objects = [
+        (ISCImportType.serial, ds4key.identity.serial),
+        (ISCImportType.pub_n, ds4key.identity.modulus),
+        (ISCImportType.sig_id, ds4key.sig_identity),
+        (ISCImportType.priv_p, ds4key.private_key.p),
+        (ISCImportType.priv_q, ds4key.private_key.q),
+        (ISCImportType.priv_pq, ds4key.private_key.pq),
+        (ISCImportType.priv_dp1, ds4key.private_key.dp1),
+        (ISCImportType.priv_dq1, ds4key.private_key.dq1),
+    ]
+    if oversized_e:
+        objects.append((ISCImportType.pub_e, ds4key.identity.exponent))
+    else:
+        # Small enough to always resend.
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_, ISCImportType.pub_e_compat, 0x00, payload=ds4key.identity.exponent[-4:]).to_list())
+        _check_error(resp, sw1, sw2)
+    for type_, data in objects:
+        _import_at(conn, type_, data, missing.get(type_, 0))
+
+    missing = _get_import_missing(conn)
+    if any(missing.get(type_, 0) for type_, _ in objects):
+        raise RuntimeError('Card reports missing blocks after upload.')
+
 def do_import_ds4key(p, args):
     ds4key, fp_pub, fp_priv, oversized_e = _load_ds4key_and_check(args.ds4key_file, args.allow_oversized_exponent)
     print('fp_pub =', fp_pub.hex())
@@ -484,6 +859,22 @@ def do_import_ds4key(p, args):
 
         print('Uploading DS4Key...')
 
+        if args.bundle:
+            bundle = _build_import_bundle(ds4key, oversized_e)
+            resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_, ISCImportType.bundle, 0x00, payload=bundle, force_extended=True).to_list())
+            _check_error(resp, sw1, sw2)
+            return
+
+        # Stage everything so the old identity stays active until the commit below.
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.begin_staging, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
+        if args.resumable:
+            _do_import_ds4key_resumable(conn, ds4key, oversized_e)
+            resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.commit, 0x00, 0x00).to_list())
+            _check_error(resp, sw1, sw2)
+            return
+
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_, ISCImportType.serial, 0x00, payload=ds4key.identity.serial).to_list())
         _check_error(resp, sw1, sw2)
 
@@ -514,6 +905,9 @@ def do_import_ds4key(p, args):
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_, ISCImportType.priv_dq1, 0x00, payload=ds4key.private_key.dq1).to_list())
         _check_error(resp, sw1, sw2)
 
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.commit, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
 def do_export_ds4id(p, args):
     with disconnectable(_do_connect_and_select(p, args)) as conn:
         ds4id_signed = _do_export_ds4id(conn)
@@ -528,9 +922,18 @@ def do_set_serial(p, args):
         raise ValueError('Serial number is not 16 bytes long.')
 
     with disconnectable(_do_connect_and_select(p, args)) as conn:
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.discard, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.begin_staging, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_, ISCImportType.serial, 0x00, payload=args.serial).to_list())
         _check_error(resp, sw1, sw2)
 
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.commit, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
 def do_sign_ds4id(p, args):
     ca, _ = _load_key_and_check(args.jedi_ca_privkey, JEDI_CA_PUBKEY_FINGERPRINT)
     ca_pss = pss.new(ca)
@@ -545,9 +948,18 @@ def do_sign_ds4id(p, args):
         sig = ca_pss.sign(sha_id)
 
         print('Importing new signature...')
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.discard, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.begin_staging, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
         resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.import_, ISCImportType.sig_id, 0x00, payload=sig).to_list())
         _check_error(resp, sw1, sw2)
 
+        resp, sw1, sw2 = conn.transmit(APDU(ISCCLA.config, ISCConfigINS.commit, 0x00, 0x00).to_list())
+        _check_error(resp, sw1, sw2)
+
 def do_enter_stealth_mode(p, args):
     if not args.yes and input('WARNING: Entering stealth mode will "permanently" disable the configuration interface for the rest of the applet life-cycle. This cannot be undone without reinstalling the applet. Type all capital YES and press Enter to confirm or just press Enter to abort. ').strip() != 'YES':
         print('Aborted.')
@@ -561,6 +973,9 @@ def do_enter_stealth_mode(p, args):
 ACTIONS = {
     'list-readers': do_list_readers,
     'applet-info': do_applet_info,
+    'capabilities': do_capabilities,
+    'benchmark': do_benchmark,
+    'counters': do_counters,
     'is-ready': do_is_ready,
     'test-auth': do_test_auth,
     'import-ds4key': do_import_ds4key,